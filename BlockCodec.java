@@ -0,0 +1,182 @@
+/** A fast, pure Java compressor for disk blocks.
+ * <p>
+ * The output is in the LZ4 block format: a series of sequences, each a
+ * token byte (literal count in the high nibble, match length minus four in
+ * the low nibble), optional length extension bytes, the literals, and a
+ * two-byte little-endian match offset.  The final sequence has literals
+ * only.  Matches are found with a single-probe hash table of four-byte
+ * prefixes, which trades some ratio for speed, as LZ4 does.
+ * <p>
+ * This class contains only static methods.
+ *
+ * @see SparseDisk
+ */
+public class BlockCodec {
+    /** This private constructor ensures that no instances of BlockCodec
+     * are ever created.
+     */
+    private BlockCodec() {}
+
+    /** log2 of the number of hash table entries. */
+    private static final int HASH_BITS = 12;
+
+    /** The shortest match worth encoding. */
+    private static final int MIN_MATCH = 4;
+
+    /** The format requires the last five bytes to be literals, and the
+     * last match to start at least this far from the end.
+     */
+    private static final int MATCH_LIMIT = 12;
+
+    /** Compresses some data.
+     * @param src the data to compress.
+     * @param len the number of bytes of src to compress.
+     * @param dst where to put the compressed data.
+     * @return the compressed length, or -1 if the result would not fit in
+     *      dst (which means the data is not worth compressing if dst is
+     *      smaller than len).
+     */
+    public static int compress(byte src[], int len, byte dst[]) {
+        int table[] = new int[1 << HASH_BITS];
+        java.util.Arrays.fill(table, -1);
+        int anchor = 0;
+        int ip = 0;
+        int op = 0;
+        while (ip < len - MATCH_LIMIT) {
+            int seq = readInt(src, ip);
+            int h = (seq * -1640531535) >>> (32 - HASH_BITS);
+            int ref = table[h];
+            table[h] = ip;
+            if (ref < 0 || ip - ref > 0xffff || readInt(src, ref) != seq) {
+                ip++;
+                continue;
+            }
+            int matchLen = MIN_MATCH;
+            while (ip + matchLen < len - 5
+                    && src[ref + matchLen] == src[ip + matchLen])
+            {
+                matchLen++;
+            }
+            op = emit(src, anchor, ip - anchor, ip - ref, matchLen, dst, op);
+            if (op < 0) {
+                return -1;
+            }
+            ip += matchLen;
+            anchor = ip;
+        }
+        return emit(src, anchor, len - anchor, 0, 0, dst, op);
+    } // compress
+
+    /** Decompresses data produced by compress().
+     * @param src the compressed data.
+     * @param off where the compressed data starts in src.
+     * @param len the compressed length.
+     * @param dst where to put the result.
+     * @param dstLen the expected length of the result.
+     * @return dstLen, or -1 if the compressed data is corrupt.
+     */
+    public static int decompress(byte src[], int off, int len,
+            byte dst[], int dstLen)
+    {
+        int ip = off;
+        int end = off + len;
+        int op = 0;
+        try {
+            while (ip < end) {
+                int token = src[ip++] & 0xff;
+                int literals = token >>> 4;
+                if (literals == 15) {
+                    int b;
+                    do {
+                        b = src[ip++] & 0xff;
+                        literals += b;
+                    } while (b == 255);
+                }
+                System.arraycopy(src, ip, dst, op, literals);
+                ip += literals;
+                op += literals;
+                if (ip >= end) {
+                    break;
+                }
+                int offset = (src[ip] & 0xff) | ((src[ip + 1] & 0xff) << 8);
+                ip += 2;
+                int matchLen = token & 0xf;
+                if (matchLen == 15) {
+                    int b;
+                    do {
+                        b = src[ip++] & 0xff;
+                        matchLen += b;
+                    } while (b == 255);
+                }
+                matchLen += MIN_MATCH;
+                if (offset == 0 || offset > op || op + matchLen > dstLen) {
+                    return -1;
+                }
+                // The match may overlap the output, so copy a byte at a time
+                for (int i = 0; i < matchLen; i++) {
+                    dst[op] = dst[op - offset];
+                    op++;
+                }
+            }
+        } catch (IndexOutOfBoundsException e) {
+            return -1;
+        }
+        return op == dstLen ? op : -1;
+    } // decompress
+
+    /** Appends one sequence to the output.
+     * @param src the uncompressed data.
+     * @param start where the literals start in src.
+     * @param literals the number of literals.
+     * @param offset the match offset (ignored if matchLen is zero).
+     * @param matchLen the match length, or zero for the final sequence.
+     * @param dst the output.
+     * @param op where to start writing in dst.
+     * @return the new output position, or -1 if dst is too small.
+     */
+    private static int emit(byte src[], int start, int literals,
+            int offset, int matchLen, byte dst[], int op)
+    {
+        int needed = 1 + literals / 255 + 1 + literals
+            + (matchLen == 0 ? 0 : 2 + matchLen / 255 + 1);
+        if (op + needed > dst.length) {
+            return -1;
+        }
+        int tokenPos = op++;
+        int token = Math.min(literals, 15) << 4;
+        op = writeLength(literals, dst, op);
+        System.arraycopy(src, start, dst, op, literals);
+        op += literals;
+        if (matchLen > 0) {
+            dst[op++] = (byte) offset;
+            dst[op++] = (byte) (offset >>> 8);
+            token |= Math.min(matchLen - MIN_MATCH, 15);
+            op = writeLength(matchLen - MIN_MATCH, dst, op);
+        }
+        dst[tokenPos] = (byte) token;
+        return op;
+    } // emit
+
+    /** Writes the extension bytes for a length that does not fit in a
+     * nibble.
+     */
+    private static int writeLength(int n, byte dst[], int op) {
+        if (n >= 15) {
+            n -= 15;
+            while (n >= 255) {
+                dst[op++] = (byte) 255;
+                n -= 255;
+            }
+            dst[op++] = (byte) n;
+        }
+        return op;
+    } // writeLength
+
+    /** Reads four bytes as a little-endian int. */
+    private static int readInt(byte b[], int i) {
+        return (b[i] & 0xff)
+            | (b[i + 1] & 0xff) << 8
+            | (b[i + 2] & 0xff) << 16
+            | (b[i + 3] & 0xff) << 24;
+    } // readInt
+} // BlockCodec
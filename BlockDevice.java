@@ -0,0 +1,52 @@
+/**
+ * Something the kernel can read and write blocks through.
+ * The Elevator talks to the Disk itself; the block cache and any other
+ * layers sit on top of it and pass requests down.
+ * All methods block until the operation is complete and return zero or
+ * a negative Kernel error code.
+ *
+ * @see Elevator
+ * @see BufferPool
+ */
+public interface BlockDevice {
+    /** Reads one block.
+     * @param blockNum the block number
+     * @param data where to put getBlockSize() bytes
+     * @return zero or an error code
+     */
+    int read(int blockNum, byte[] data);
+
+    /** Writes one block.
+     * @param blockNum the block number
+     * @param data getBlockSize() bytes to write
+     * @return zero or an error code
+     */
+    int write(int blockNum, byte[] data);
+
+    /** Reads an extent of contiguous blocks.
+     * @param blockNum the first block number
+     * @param count the number of blocks
+     * @param data where to put count * getBlockSize() bytes
+     * @return zero or an error code
+     */
+    int readExtent(int blockNum, int count, byte[] data);
+
+    /** Writes an extent of contiguous blocks.
+     * @param blockNum the first block number
+     * @param count the number of blocks
+     * @param data count * getBlockSize() bytes to write
+     * @return zero or an error code
+     */
+    int writeExtent(int blockNum, int count, byte[] data);
+
+    /** @return the size of a block in bytes */
+    int getBlockSize();
+
+    /** @return the number of blocks available */
+    int getBlockCount();
+
+    /** Writes out anything held back by this device.
+     * @return zero or an error code
+     */
+    int flush();
+}
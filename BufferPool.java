@@ -1,33 +1,434 @@
-public class BufferPool {
-    private static byte[][] pool;
-    private static Elevator elev;
-    public BufferPool(int cacheSize, int blockSize, Elevator ev) {
-        elev = ev;
-        pool = new byte[cacheSize][];
+import java.nio.*;
+import java.util.*;
+
+/**
+ * BufferPool is a write-through block cache
+ *   keeps the most recently used blocks in a fixed number of frames,
+ *   all allocated up front, and evicts the least recently used block
+ *   when it needs a frame.
+ *   Writes go straight to the device below and then update (or allocate)
+ *   the cached copy, so the cache never holds anything the disk doesn't;
+ *   a write that fails drops the block from the cache instead.  Writes
+ *   of the same block wait for each other, so the cache and the disk end
+ *   up with the same one last.
+ *   Extents are read and written as single operations on the device below.
+ *   Blocks can be pinned, which keeps them from being evicted; the file
+ *   system pins its metadata this way.  A pinned block's frame can be
+ *   handed out as a read-only ByteBuffer view, so a reader can look at a
+ *   cached block without it being copied at all.
+ *   Optionally, new blocks must earn their place (TinyLFU): a frequency
+ *   sketch records every use, and a block that would evict another is
+ *   only cached if it has been used more often lately than its victim,
+ *   so a one-off scan of the disk does not flush out the blocks that are
+ *   used all the time.  Pinning always caches the block.
+ *   Optionally there is a second, much larger level off the heap: evicted
+ *   blocks are demoted to it rather than dropped, and misses look there
+ *   before going to the device below.
+ *
+ * @author <a href="mailto:bartlantz@gmail.com">Bart Lantz</a>
+ * @version 1.0
+ */
+public class BufferPool implements BlockDevice {
+    private BlockDevice lower;
+    private int blockSize;
+    private int capacity;
+    /** Cached blocks, least recently used first: block number to frame */
+    private LinkedHashMap<Integer, byte[]> frames;
+    /** Frames not holding any block yet */
+    private LinkedList<byte[]> free;
+    /** Pin counts of pinned blocks */
+    private HashMap<Integer, Integer> pins;
+    /** Bumped by every write, so a read miss that raced with a write
+     *  does not install stale data */
+    private long writeGen;
+    /** Blocks being written to the device below */
+    private HashSet<Integer> writing;
+    /** The second level, or null if there is none */
+    private OffHeapCache l2;
+    /** Use counts for admission, or null if every block is admitted */
+    private FrequencySketch sketch;
+    /** New blocks turned away by admission */
+    private long rejected;
+    private long hits;
+    private long misses;
+
+    public BufferPool(int cacheSize, BlockDevice lower) {
+        this(cacheSize, 0, lower);
+    }
+
+    /**
+     * Creates a two-level cache
+     *
+     * @param cacheSize the number of frames on the heap
+     * @param l2Blocks the number of blocks in the off-heap second level,
+     * or zero for none
+     * @param lower the device being cached
+     */
+    public BufferPool(int cacheSize, int l2Blocks, BlockDevice lower) {
+        this(cacheSize, l2Blocks, false, lower);
+    }
+
+    /**
+     * Creates a two-level cache, with or without admission
+     *
+     * @param cacheSize the number of frames on the heap
+     * @param l2Blocks the number of blocks in the off-heap second level,
+     * or zero for none
+     * @param admission true if a new block must have been used more often
+     * than the block it would evict
+     * @param lower the device being cached
+     */
+    public BufferPool(int cacheSize, int l2Blocks, boolean admission,
+                      BlockDevice lower) {
+        this.lower = lower;
+        if (admission) {
+            sketch = new FrequencySketch(cacheSize);
+        }
+        blockSize = lower.getBlockSize();
+        capacity = cacheSize;
+        frames = new LinkedHashMap<Integer, byte[]>(cacheSize, 0.75f, true);
+        free = new LinkedList<byte[]>();
+        pins = new HashMap<Integer, Integer>();
+        writing = new HashSet<Integer>();
         for (int i = 0; i < cacheSize; i++) {
-            pool[i] = new byte[blockSize];
+            free.add(new byte[blockSize]);
+        }
+        if (l2Blocks > 0) {
+            l2 = new OffHeapCache(l2Blocks, blockSize, lower.getBlockCount());
         }
+    }
 
+    public int read(int blockNum, byte[] buffer) {
+        return read(blockNum, buffer, false);
     }
-    public byte[] read(int blockNum, byte[] buffer) {
+
+    /**
+     * Reads a block, through the cache
+     *
+     * @param force true to cache the block even if admission would not
+     */
+    private int read(int blockNum, byte[] buffer, boolean force) {
+        long gen;
         // check if we have that in cache
-        if (pool[blockNum] != null) {
-            return pool[blockNum];
-        } else {
-            elev.read(blockNum,pool[blockNum]);
-            return pool[blockNum];
+        synchronized (this) {
+            if (sketch != null) {
+                sketch.increment(blockNum);
+            }
+            byte[] frame = frames.get(blockNum);
+            if (frame != null) {
+                hits++;
+                System.arraycopy(frame, 0, buffer, 0, blockSize);
+                return 0;
+            }
+            if (l2 != null && l2.get(blockNum, buffer, 0)) {
+                hits++;
+                install(blockNum, buffer, 0, force);
+                return 0;
+            }
+            misses++;
+            gen = writeGen;
+        }
+        int rc = lower.read(blockNum, buffer);
+        if (rc < 0) {
+            return rc;
         }
+        synchronized (this) {
+            if (gen == writeGen) {
+                install(blockNum, buffer, 0, force);
+            }
+        }
+        return 0;
     }
+
     public int write(int blockNum, byte[] buffer) {
+        startWrite(blockNum, 1);
+        int rc = Kernel.ERROR_IO;
+        try {
+            rc = lower.write(blockNum, buffer);
+        } finally {
+            endWrite(blockNum, 1, buffer, rc);
+        }
+        return rc;
+    }
+
+    /** Reads an extent, from the cache if every block is there and
+     * otherwise with one extent read from the device below.
+     */
+    public int readExtent(int blockNum, int count, byte[] data) {
+        long gen;
+        synchronized (this) {
+            if (sketch != null) {
+                for (int i = 0; i < count; i++) {
+                    sketch.increment(blockNum + i);
+                }
+            }
+            boolean all = true;
+            for (int i = 0; i < count && all; i++) {
+                all = frames.containsKey(blockNum + i)
+                    || (l2 != null && l2.contains(blockNum + i));
+            }
+            if (all) {
+                // Copy everything before promoting anything, since
+                // promoting evicts
+                BitSet promote = new BitSet();
+                for (int i = 0; i < count; i++) {
+                    byte[] frame = frames.get(blockNum + i);
+                    if (frame != null) {
+                        System.arraycopy(frame, 0,
+                                         data, i * blockSize, blockSize);
+                    } else {
+                        l2.get(blockNum + i, data, i * blockSize);
+                        promote.set(i);
+                    }
+                }
+                for (int i = promote.nextSetBit(0); i >= 0;
+                     i = promote.nextSetBit(i + 1))
+                {
+                    install(blockNum + i, data, i * blockSize, false);
+                }
+                hits += count;
+                return 0;
+            }
+            misses += count;
+            gen = writeGen;
+        }
+        int rc = lower.readExtent(blockNum, count, data);
+        if (rc < 0) {
+            return rc;
+        }
+        synchronized (this) {
+            if (gen == writeGen) {
+                for (int i = 0; i < count; i++) {
+                    install(blockNum + i, data, i * blockSize, false);
+                }
+            }
+        }
+        return 0;
+    }
+
+    public int writeExtent(int blockNum, int count, byte[] data) {
+        startWrite(blockNum, count);
+        int rc = Kernel.ERROR_IO;
+        try {
+            rc = lower.writeExtent(blockNum, count, data);
+        } finally {
+            endWrite(blockNum, count, data, rc);
+        }
+        return rc;
+    }
+
+    /**
+     * Waits until no other write of the blocks is in progress and claims
+     * them.  The second level's copies are dropped now, since they are
+     * about to be out of date; the frames keep what the disk has until
+     * the write is done.
+     */
+    private synchronized void startWrite(int blockNum, int count) {
+        for (int i = 0; i < count; ) {
+            if (!writing.contains(blockNum + i)) {
+                i++;
+                continue;
+            }
+            try {
+                wait();
+            } catch (InterruptedException e) {
+                e.printStackTrace();
+            }
+            // Look at all of them again; the lock was let go
+            i = 0;
+        }
+        writeGen++;
+        for (int i = 0; i < count; i++) {
+            writing.add(blockNum + i);
+            if (sketch != null) {
+                sketch.increment(blockNum + i);
+            }
+            if (l2 != null) {
+                l2.remove(blockNum + i);
+            }
+        }
+    }
+
+    /**
+     * Caches the blocks just written, or forgets them if the write failed
+     * (it may have got part way), and lets the next writer of them go.
+     */
+    private synchronized void endWrite(int blockNum, int count, byte[] data,
+                                       int rc) {
+        writeGen++;
+        for (int i = 0; i < count; i++) {
+            int b = blockNum + i;
+            if (rc >= 0) {
+                install(b, data, i * blockSize, false);
+            } else if (!pins.containsKey(b)) {
+                byte[] frame = frames.remove(b);
+                if (frame != null) {
+                    free.add(frame);
+                }
+            }
+            writing.remove(b);
+        }
+        notifyAll();
+    }
+
+    /**
+     * Pins a block in the cache, reading it in if necessary.
+     * A pinned block is never evicted until it has been unpinned as many
+     * times as it was pinned.
+     *
+     * @param blockNum the block to pin
+     * @return zero, or ERROR_OUT_OF_RANGE if every frame is already pinned
+     */
+    public int pin(int blockNum) {
+        byte[] buffer = new byte[blockSize];
+        for (int tries = 0; tries < 2; tries++) {
+            synchronized (this) {
+                if (frames.containsKey(blockNum)) {
+                    Integer n = pins.get(blockNum);
+                    pins.put(blockNum, n == null ? 1 : n + 1);
+                    return 0;
+                }
+                if (pins.size() >= capacity) {
+                    return Kernel.ERROR_OUT_OF_RANGE;
+                }
+            }
+            int rc = read(blockNum, buffer, true);
+            if (rc < 0) {
+                return rc;
+            }
+        }
+        return Kernel.ERROR_OUT_OF_RANGE;
+    }
+
+    /**
+     * Pins a block and returns a read-only view of its frame.
+     * The view shows the block's current contents, including later
+     * writes, until the block is unpinned; after that the frame may be
+     * reused for another block and the view must not be used.
+     *
+     * @param blockNum the block to pin
+     * @param view where to put the view
+     * @return zero, or ERROR_OUT_OF_RANGE if every frame is already pinned
+     */
+    public int pinView(int blockNum, ByteBuffer[] view) {
+        int rc = pin(blockNum);
+        if (rc < 0) {
+            return rc;
+        }
+        synchronized (this) {
+            view[0] = ByteBuffer.wrap(frames.get(blockNum)).asReadOnlyBuffer();
+        }
         return 0;
     }
 
+    /**
+     * Undoes one call to pin
+     *
+     * @param blockNum the block to unpin
+     */
+    public synchronized void unpin(int blockNum) {
+        Integer n = pins.get(blockNum);
+        if (n == null) {
+            return;
+        }
+        if (n == 1) {
+            pins.remove(blockNum);
+        } else {
+            pins.put(blockNum, n - 1);
+        }
+    }
+
+    /**
+     * Copies a block into its frame, taking a free frame or evicting the
+     * least recently used unpinned block if it isn't cached.  If every
+     * frame is pinned the block is simply not cached.  With admission, a
+     * block that would evict a more frequently used one is not cached
+     * either, unless force is set.  An evicted block is demoted to the
+     * second level.
+     * Caller must hold the lock.
+     */
+    private void install(int blockNum, byte[] src, int offset,
+                         boolean force) {
+        if (capacity == 0) {
+            return;
+        }
+        byte[] frame = frames.get(blockNum);
+        if (frame == null) {
+            frame = free.poll();
+            if (frame == null) {
+                Iterator<Map.Entry<Integer, byte[]>> it
+                    = frames.entrySet().iterator();
+                while (it.hasNext()) {
+                    Map.Entry<Integer, byte[]> victim = it.next();
+                    if (!pins.containsKey(victim.getKey())) {
+                        if (sketch != null && !force
+                            && sketch.frequency(blockNum)
+                               <= sketch.frequency(victim.getKey()))
+                        {
+                            rejected++;
+                            return;
+                        }
+                        frame = victim.getValue();
+                        it.remove();
+                        if (l2 != null) {
+                            l2.put(victim.getKey(), frame, 0);
+                        }
+                        break;
+                    }
+                }
+                if (frame == null) {
+                    return;
+                }
+            }
+            frames.put(blockNum, frame);
+        }
+        System.arraycopy(src, offset, frame, 0, blockSize);
+    }
+
+    public int getBlockSize() {
+        return blockSize;
+    }
+
+    public int getBlockCount() {
+        return lower.getBlockCount();
+    }
 
     /** Flush the caches to disk
+     *   the cache is write-through, so only the device below has anything
+     *   to flush.
      *
      * @return an <code>int</code> value
      */
     public int flush() {
-        return 0;
+        return lower.flush();
+    }
+
+    /** @return the number of frames in the cache */
+    public int getCapacity() {
+        return capacity;
+    }
+
+    public synchronized long getHits() {
+        return hits;
+    }
+
+    public synchronized long getMisses() {
+        return misses;
+    }
+
+    /** @return the number of frames holding blocks */
+    public synchronized int getOccupancy() {
+        return frames.size();
+    }
+
+    /** @return how many new blocks admission has turned away */
+    public synchronized long getRejected() {
+        return rejected;
+    }
+
+    /** @return a one-line summary of the second level, or null if there
+     * is none */
+    public synchronized String getL2Stats() {
+        return l2 == null ? null : l2.getStats();
     }
-}
\ No newline at end of file
+}
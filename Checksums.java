@@ -0,0 +1,357 @@
+import java.nio.*;
+import java.util.*;
+import java.util.zip.CRC32C;
+
+/** A block layer that keeps a CRC32C checksum of every block.
+ * <p>
+ * The end of the disk is a checksum region: a header block followed by a
+ * table with a 4-byte checksum for each of the other blocks.  The table
+ * is kept in memory.  Every write computes the block's checksum, and
+ * every read recomputes it and compares, so a block that has changed on
+ * the disk since it was written is reported with ERROR_CORRUPT.  The
+ * checksums use java.util.zip.CRC32C, which the JVM compiles to the
+ * processor's CRC instructions, so checking costs little next to the
+ * I/O itself.
+ * <p>
+ * <b>Scrubbing.</b>  A low-priority daemon thread reads the whole disk
+ * over and over, an extent at a time, and checks every block, so that
+ * corruption is found even in blocks nobody reads.  It reads only when
+ * the Elevator has had no foreground requests for <tt>idle</tt> ms, and
+ * its reads do not count as foreground activity, so it stays out of the
+ * way of the programs using the disk.
+ * <p>
+ * <b>Persistence.</b>  flush() (SYSCALL_CHECKPOINT and shutdown) writes
+ * the changed parts of the table and marks the header clean (once every
+ * checksum is known); the first write after that marks it dirty again.
+ * If the disk is mounted dirty
+ * (after a crash), the checksums of recently written blocks may be
+ * stale, so none are trusted: each block's checksum is relearned from
+ * its contents the first time it is read or scrubbed.  The same happens
+ * on a new disk.
+ *
+ * @see Kernel
+ * @see Elevator
+ */
+public class Checksums implements BlockDevice {
+    /** Magic number of the header ("CSUM"). */
+    private static final int MAGIC = 0x4353554d;
+
+    /** How many blocks the scrubber reads at a time. */
+    private static final int SCRUB_EXTENT = 16;
+
+    private Elevator lower;
+    private int blockSize;
+
+    /** The number of blocks callers can use. */
+    private int dataBlocks;
+
+    /** The header; the table follows it. */
+    private int regionStart;
+
+    /** Checksums per table block. */
+    private int perBlock;
+
+    /** The checksum of every block. */
+    private int[] table;
+
+    /** Blocks whose entry in table is known to be right. */
+    private BitSet trusted = new BitSet();
+
+    /** Table blocks changed since the last flush. */
+    private BitSet dirty = new BitSet();
+
+    /** Whether the header on disk says the table is up to date. */
+    private boolean clean;
+
+    /** For each block, bumped when a write of it starts and again when it
+     * ends, and the number of writes of it in progress, so that a read
+     * that raced with a write of a block does not learn or check a stale
+     * checksum for that block. */
+    private int[] writeGen;
+    private int[] writing;
+
+    /** The number of writes in progress; the header is not marked clean
+     * while there are any, since they have already passed the check that
+     * marks it dirty. */
+    private int inFlight;
+
+    /** How long the disk must be idle before the scrubber reads (ms). */
+    private int idle;
+
+    /** The next block the scrubber will check. */
+    private int scrubCursor;
+
+    /** Blocks found corrupt, by reads or by the scrubber. */
+    private BitSet bad = new BitSet();
+
+    /** Statistics. */
+    private long verified;
+    private long readErrors;
+    private long scrubbed;
+    private long scrubErrors;
+    private long passes;
+
+    /** Creates a checksum layer on top of the Elevator.
+     * Call mount() before using it.
+     * @param lower the Elevator.
+     * @param idle how long the disk must be idle before the scrubber reads
+     *      (ms).
+     */
+    public Checksums(Elevator lower, int idle) {
+        this.lower = lower;
+        this.idle = idle;
+        blockSize = lower.getBlockSize();
+        perBlock = blockSize / 4;
+        int physical = lower.getBlockCount();
+        int tableBlocks = (physical + perBlock - 1) / perBlock;
+        regionStart = physical - 1 - tableBlocks;
+        dataBlocks = regionStart;
+        if (dataBlocks < 1) {
+            throw new IllegalArgumentException("disk too small for checksums");
+        }
+        table = new int[dataBlocks];
+        writeGen = new int[dataBlocks];
+        writing = new int[dataBlocks];
+    } // constructor
+
+    /////////////////////////////////////////// BlockDevice
+
+    public int read(int blockNum, byte[] data) {
+        return readExtent(blockNum, 1, data);
+    }
+
+    public int readExtent(int blockNum, int count, byte[] data) {
+        int[] gen = generations(blockNum, count);
+        int rc = lower.readExtent(blockNum, count, data);
+        if (rc < 0) {
+            return rc;
+        }
+        return check(blockNum, count, data, gen, false);
+    }
+
+    public int write(int blockNum, byte[] data) {
+        return writeExtent(blockNum, 1, data);
+    }
+
+    public int writeExtent(int blockNum, int count, byte[] data) {
+        int[] sums = new int[count];
+        CRC32C crc = new CRC32C();
+        for (int i = 0; i < count; i++) {
+            crc.reset();
+            crc.update(data, i * blockSize, blockSize);
+            sums[i] = (int) crc.getValue();
+        }
+        synchronized (this) {
+            if (clean) {
+                clean = false;
+                writeHeader();
+            }
+            for (int i = 0; i < count; i++) {
+                writeGen[blockNum + i]++;
+                writing[blockNum + i]++;
+            }
+            inFlight++;
+        }
+        int rc = lower.writeExtent(blockNum, count, data);
+        synchronized (this) {
+            inFlight--;
+            for (int i = 0; i < count; i++) {
+                int b = blockNum + i;
+                writeGen[b]++;
+                writing[b]--;
+                table[b] = sums[i];
+                trusted.set(b);
+                bad.clear(b);
+                dirty.set(b / perBlock);
+            }
+        }
+        return rc;
+    }
+
+    public int getBlockSize() {
+        return blockSize;
+    }
+
+    public int getBlockCount() {
+        return dataBlocks;
+    }
+
+    /** Writes the changed parts of the table and, if every checksum is
+     * known and no write is in progress, marks it clean.
+     * @return zero or an error code
+     */
+    public synchronized int flush() {
+        byte[] block = new byte[blockSize];
+        IntBuffer ib = ByteBuffer.wrap(block).asIntBuffer();
+        for (int t = dirty.nextSetBit(0); t >= 0; t = dirty.nextSetBit(t + 1)) {
+            Arrays.fill(block, (byte) 0);
+            ib.clear();
+            int first = t * perBlock;
+            ib.put(table, first, Math.min(perBlock, dataBlocks - first));
+            lower.write(regionStart + 1 + t, block);
+        }
+        dirty.clear();
+        // Checksums not yet learned are zero in the table
+        clean = trusted.cardinality() == dataBlocks && inFlight == 0;
+        writeHeader();
+        return lower.flush();
+    }
+
+    /////////////////////////////////////////// Checking
+
+    /** Notes the write generations of blocks about to be read.
+     * @return their generations
+     */
+    private synchronized int[] generations(int blockNum, int count) {
+        int[] gen = new int[count];
+        System.arraycopy(writeGen, blockNum, gen, 0, count);
+        return gen;
+    } // generations
+
+    /** Checks blocks just read against their checksums, learning the
+     * checksums of untrusted blocks.  Blocks written while they were
+     * being read are skipped, and their entries in gen set to -1.
+     * @param gen the blocks' generations before the read
+     * @param scrub true if the scrubber did the read
+     * @return zero, or ERROR_CORRUPT if any block is bad
+     */
+    private int check(int blockNum, int count, byte[] data, int[] gen,
+                      boolean scrub)
+    {
+        int[] sums = new int[count];
+        CRC32C crc = new CRC32C();
+        for (int i = 0; i < count; i++) {
+            crc.reset();
+            crc.update(data, i * blockSize, blockSize);
+            sums[i] = (int) crc.getValue();
+        }
+        synchronized (this) {
+            int rc = 0;
+            int checked = 0;
+            for (int i = 0; i < count; i++) {
+                int b = blockNum + i;
+                if (writing[b] > 0 || writeGen[b] != gen[i]) {
+                    // A write overlapped the read; believe the data
+                    gen[i] = -1;
+                    continue;
+                }
+                checked++;
+                if (!trusted.get(b)) {
+                    table[b] = sums[i];
+                    trusted.set(b);
+                    dirty.set(b / perBlock);
+                } else if (table[b] != sums[i]) {
+                    bad.set(b);
+                    if (scrub) {
+                        scrubErrors++;
+                    } else {
+                        readErrors++;
+                    }
+                    rc = Kernel.ERROR_CORRUPT;
+                }
+            }
+            if (scrub) {
+                scrubbed += checked;
+            } else {
+                verified += checked;
+            }
+            return rc;
+        }
+    } // check
+
+    /** Starts the scrubber thread. */
+    private void startScrubber() {
+        Thread t = new Thread("SCRUBBER") {
+            public void run() {
+                byte[] buf = new byte[SCRUB_EXTENT * blockSize];
+                for (;;) {
+                    try {
+                        Thread.sleep(Math.max(1, idle / 2));
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                    if (lower.getIdleTime() < idle) {
+                        continue;
+                    }
+                    int start;
+                    synchronized (Checksums.this) {
+                        start = scrubCursor;
+                    }
+                    int n = Math.min(SCRUB_EXTENT, dataBlocks - start);
+                    int[] gen = generations(start, n);
+                    lower.readBackground(start, n, buf);
+                    check(start, n, buf, gen, true);
+                    // Go back for the first block that was not checked
+                    int done = 0;
+                    while (done < n && gen[done] >= 0) {
+                        done++;
+                    }
+                    synchronized (Checksums.this) {
+                        scrubCursor = start + done;
+                        if (scrubCursor >= dataBlocks) {
+                            scrubCursor = 0;
+                            passes++;
+                        }
+                    }
+                }
+            }
+        };
+        t.setDaemon(true);
+        t.setPriority(Thread.MIN_PRIORITY);
+        t.start();
+    } // startScrubber
+
+    /////////////////////////////////////////// Metadata
+
+    /** Writes the header.  Caller must hold the lock. */
+    private void writeHeader() {
+        byte[] header = new byte[blockSize];
+        ByteBuffer.wrap(header).putInt(MAGIC).putInt(dataBlocks)
+            .putInt(clean ? 1 : 0);
+        lower.write(regionStart, header);
+    } // writeHeader
+
+    /** Loads the table and starts the scrubber.  Called once, at power on.
+     * @return the number of blocks whose checksums are trusted
+     */
+    public synchronized int mount() {
+        byte[] block = new byte[blockSize];
+        lower.read(regionStart, block);
+        ByteBuffer hb = ByteBuffer.wrap(block);
+        trusted.clear();
+        if (hb.getInt() == MAGIC && hb.getInt() == dataBlocks
+            && hb.getInt() == 1)
+        {
+            int tableBlocks = (dataBlocks + perBlock - 1) / perBlock;
+            byte[] all = new byte[tableBlocks * blockSize];
+            lower.readExtent(regionStart + 1, tableBlocks, all);
+            ByteBuffer.wrap(all).asIntBuffer().get(table);
+            trusted.set(0, dataBlocks);
+        }
+        clean = false;
+        writeHeader();
+        startScrubber();
+        return trusted.cardinality();
+    } // mount
+
+    /** Fills in statistics.
+     * @param stats where to put, in order, the number of blocks verified
+     *      by reads, errors found by reads, blocks scrubbed, errors found
+     *      by the scrubber, complete scrub passes, and blocks known bad;
+     *      as many as fit.
+     * @return zero
+     */
+    public synchronized int getStats(long[] stats) {
+        long[] all = { verified, readErrors, scrubbed, scrubErrors, passes,
+                       bad.cardinality() };
+        System.arraycopy(all, 0, stats, 0, Math.min(all.length, stats.length));
+        return 0;
+    } // getStats
+
+    /** @return a one-line summary of the layer's activity */
+    public synchronized String getStats() {
+        return verified + " blocks verified, " + readErrors
+            + " read errors, " + scrubbed + " blocks scrubbed ("
+            + passes + " passes), " + scrubErrors + " scrub errors";
+    }
+}
@@ -0,0 +1,218 @@
+import java.io.*;
+import java.util.concurrent.atomic.*;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Console buffers what programs write to the screen
+ *   SYSCALL_OUTPUT used to print on the caller's thread, so every process
+ *   that wrote to the console, and every disk request the Elevator logged,
+ *   took turns holding the PrintStream's lock while the text went out.
+ *   Now a caller just puts its message in a ring and returns; one writer
+ *   thread takes out everything that has piled up and prints it in one
+ *   write.  The busier the console, the bigger the batches.
+ *   The ring is bounded and lock-free, for any number of producers and the
+ *   one consumer: each slot has a sequence number saying whose turn it is,
+ *   a producer claims a slot by advancing the tail with compareAndSet, and
+ *   publishes the message by setting the slot's sequence number.  A
+ *   producer that finds the ring full wakes the writer and waits for room,
+ *   so nothing is dropped.
+ *   Messages from one thread come out in the order they were put in.
+ *   flush() waits until everything put in so far has been printed; the
+ *   kernel calls it before reading input, when a process ends, and at
+ *   shutdown.  Once close() has stopped the writer, print() writes
+ *   straight to the stream, after anything still left in the ring.
+ *
+ * @see Kernel
+ */
+public class Console {
+    /** Where the text goes */
+    private PrintStream out;
+    private String[] messages;
+    /** For each slot, the tail position at which it may next be filled, or
+     * that plus one once it has been */
+    private AtomicLongArray sequence;
+    private int mask;
+    /** The next slot to fill */
+    private AtomicLong tail = new AtomicLong();
+    /** The next slot to print; only the writer moves it */
+    private long head;
+    /** How many messages have been printed */
+    private volatile long printed;
+    /** The writer, and whether it is (about to be) asleep */
+    private Thread writer;
+    private volatile boolean sleeping;
+    private volatile boolean closed;
+    private long batches;
+    private AtomicLong stalls = new AtomicLong();
+
+    /**
+     * Creates the ring and starts the writer thread
+     *
+     * @param out where to print
+     * @param capacity the most messages the ring holds, rounded up to a
+     *   power of two
+     */
+    public Console(PrintStream out, int capacity) {
+        this.out = out;
+        int size = Integer.highestOneBit(Math.max(2, capacity) - 1) << 1;
+        messages = new String[size];
+        sequence = new AtomicLongArray(size);
+        for (int i = 0; i < size; i++) {
+            sequence.set(i, i);
+        }
+        mask = size - 1;
+        writer = new Thread("CONSOLE") {
+            public void run() {
+                drain();
+            }
+        };
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    /**
+     * Queues a message to be printed
+     *
+     * @param msg the message
+     */
+    public void print(String msg) {
+        if (closed) {
+            printDirect(msg);
+            return;
+        }
+        for (;;) {
+            long t = tail.get();
+            int slot = (int) t & mask;
+            long s = sequence.get(slot);
+            if (s == t) {
+                if (tail.compareAndSet(t, t + 1)) {
+                    messages[slot] = msg;
+                    sequence.set(slot, t + 1);
+                    if (sleeping) {
+                        LockSupport.unpark(writer);
+                    }
+                    if (closed) {
+                        // The writer may have stopped before seeing it
+                        printDirect(null);
+                    }
+                    return;
+                }
+            } else if (s < t) {
+                if (closed) {
+                    // No writer will make room
+                    printDirect(msg);
+                    return;
+                }
+                // Full: let the writer catch up
+                stalls.incrementAndGet();
+                LockSupport.unpark(writer);
+                LockSupport.parkNanos(100000);
+            }
+        }
+    }
+
+    /** Waits until every message queued so far has been printed */
+    public void flush() {
+        long target = tail.get();
+        while (printed < target && writer.isAlive()) {
+            LockSupport.unpark(writer);
+            synchronized (this) {
+                if (printed < target) {
+                    try {
+                        wait(1);
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                }
+            }
+        }
+    }
+
+    /** Prints everything queued so far and stops the writer thread */
+    public void close() {
+        flush();
+        closed = true;
+        printDirect(null);
+    }
+
+    /** Once the writer has stopped, prints whatever is left in the ring,
+     * and then a message.
+     * @param msg the message, or null
+     */
+    private void printDirect(String msg) {
+        // Not while holding the lock, which the writer takes to notify
+        LockSupport.unpark(writer);
+        try {
+            writer.join();
+        } catch (InterruptedException e) {
+            e.printStackTrace();
+        }
+        synchronized (this) {
+            StringBuilder rest = new StringBuilder();
+            for (;;) {
+                int slot = (int) head & mask;
+                if (sequence.get(slot) != head + 1) {
+                    break;
+                }
+                rest.append(messages[slot]);
+                messages[slot] = null;
+                sequence.set(slot, head + mask + 1);
+                head++;
+            }
+            printed = head;
+            if (msg != null) {
+                rest.append(msg);
+            }
+            if (rest.length() > 0) {
+                out.print(rest);
+                out.flush();
+            }
+            notifyAll();
+        }
+    }
+
+    /** The writer thread's loop: prints whatever has been queued, a batch
+     * at a time, and sleeps when there is nothing */
+    private void drain() {
+        StringBuilder batch = new StringBuilder();
+        for (;;) {
+            int n = 0;
+            while (n <= mask) {
+                int slot = (int) head & mask;
+                if (sequence.get(slot) != head + 1) {
+                    break;
+                }
+                batch.append(messages[slot]);
+                messages[slot] = null;
+                sequence.set(slot, head + mask + 1);
+                head++;
+                n++;
+            }
+            if (n > 0) {
+                out.print(batch);
+                out.flush();
+                batch.setLength(0);
+                batches++;
+                printed = head;
+                synchronized (this) {
+                    notifyAll();
+                }
+                continue;
+            }
+            if (closed) {
+                return;
+            }
+            sleeping = true;
+            if (sequence.get((int) head & mask) != head + 1 && !closed) {
+                LockSupport.park(this);
+            }
+            sleeping = false;
+        }
+    }
+
+    /** @return a one-line summary of the console's activity */
+    public String getStats() {
+        return "console " + printed + " messages in " + batches
+            + " writes, " + stalls.get() + " waits for a full buffer";
+    }
+}
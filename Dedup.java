@@ -0,0 +1,688 @@
+import java.nio.*;
+import java.util.*;
+import java.util.zip.CRC32;
+
+/** A block layer that stores identical blocks only once.
+ * <p>
+ * Each logical block maps to a physical block, and physical blocks are
+ * reference counted.  A write is fingerprinted with a 128-bit hash
+ * (MurmurHash3) and looked up in a hash index of the physical blocks.  If
+ * a physical block with the same fingerprint exists, it is read back and
+ * compared byte for byte (normally a hit in the block cache below, so no
+ * disk I/O); if it really is the same, the logical block is simply
+ * pointed at it and nothing is written.  Otherwise the data is written
+ * in place if the logical block's physical block is not shared, or to a
+ * new physical block if it is.
+ * <p>
+ * The layer sits above the block cache, so the cache holds physical
+ * blocks and logical blocks with the same contents share one frame.
+ * <p>
+ * The index is an open-addressing hash table kept off the Java heap in a
+ * direct buffer: 16 bytes per slot (64 bits of fingerprint, 32 more bits
+ * of fingerprint as a check, and the physical block), with room for
+ * every physical block at a load factor of one half.
+ * <p>
+ * <b>Persistence.</b>  Two alternating metadata regions at the start of
+ * the disk hold the mapping and each physical block's fingerprint; the
+ * reference counts and the index are rebuilt from them by load().
+ * flush() (SYSCALL_CHECKPOINT and shutdown) saves them.  Until the next
+ * flush, the saved tables are what a crash leaves behind, so no physical
+ * block they give to a logical block is given other contents: blocks
+ * freed since the last flush are not reused, and a block is only written
+ * in place if the saved tables give it to no other logical block.  Because
+ * every match is verified, a fingerprint left stale by a crash can never
+ * cause a wrong match.
+ *
+ * @see Kernel
+ * @see BufferPool
+ */
+public class Dedup implements BlockDevice {
+    /** Magic number of a metadata header ("DDUP"). */
+    private static final int MAGIC = 0x44445550;
+
+    /** The size of a slot in the index. */
+    private static final int SLOT = 16;
+
+    private BlockDevice lower;
+    private int blockSize;
+
+    /** The number of blocks in each metadata region, header included. */
+    private int regionBlocks;
+
+    /** The first physical data block. */
+    private int dataStart;
+
+    /** The number of physical data blocks, and of logical blocks. */
+    private int dataBlocks;
+
+    /** Logical block to physical block. */
+    private int[] map;
+
+    /** Reference count of each physical block (by offset in the data area). */
+    private int[] refs;
+
+    /** The fingerprint of each physical block in the index (64 bits, and
+     * 32 more as a check), or 0 if it is not in the index.
+     */
+    private long[] print;
+    private int[] check;
+
+    /** The index: fingerprint to physical block. */
+    private ByteBuffer index;
+
+    /** The number of slots in the index, a power of two. */
+    private int slots;
+
+    /** The mapping as last saved, and the reference counts it implies. */
+    private int[] savedMap;
+    private int[] savedRefs;
+
+    /** Physical blocks freed since the last flush. */
+    private BitSet released = new BitSet();
+
+    /** Where to start looking for a free physical block. */
+    private int rover;
+
+    /** Changes made to the tables while placing the current extent, so
+     * they can be undone if it cannot all be placed and written; null
+     * when no extent is being placed.  Each entry is one of the UNDO_XXX
+     * kinds followed by what is needed to undo it.
+     */
+    private ArrayList<int[]> undo;
+
+    private static final int UNDO_MAP = 0;
+    private static final int UNDO_REFS = 1;
+    private static final int UNDO_INSERT = 2;
+    private static final int UNDO_UNINDEX = 3;
+    private static final int UNDO_RELEASED = 4;
+
+    /** Serializes writes. */
+    private Object writeLock = new Object();
+
+    /** The number of flushes ever done. */
+    private long flushSeq;
+
+    /** Statistics. */
+    private long writes;
+    private long duplicates;
+    private long verifyReads;
+    private long collisions;
+
+    /** Creates a dedup layer on top of a device.
+     * Call load() before using it.
+     * @param lower the device.
+     */
+    public Dedup(BlockDevice lower) {
+        this.lower = lower;
+        blockSize = lower.getBlockSize();
+        int physical = lower.getBlockCount();
+        regionBlocks = 1 + (int) (((long) physical * 16 + blockSize - 1)
+                                  / blockSize);
+        dataStart = 2 * regionBlocks;
+        dataBlocks = physical - dataStart;
+        if (dataBlocks < 1) {
+            throw new IllegalArgumentException("disk too small for dedup");
+        }
+        map = new int[dataBlocks];
+        refs = new int[dataBlocks];
+        savedMap = new int[dataBlocks];
+        savedRefs = new int[dataBlocks];
+        print = new long[dataBlocks];
+        check = new int[dataBlocks];
+        slots = Integer.highestOneBit(Math.max(2, dataBlocks)) * 4;
+        index = ByteBuffer.allocateDirect(slots * SLOT);
+    } // constructor
+
+    /////////////////////////////////////////// BlockDevice
+
+    public int read(int blockNum, byte[] data) {
+        int p;
+        synchronized (this) {
+            p = map[blockNum];
+        }
+        return lower.read(p, data);
+    }
+
+    /** Reads an extent, with one operation for each run of it that is
+     * also contiguous physically.
+     */
+    public int readExtent(int blockNum, int count, byte[] data) {
+        int[] p = new int[count];
+        synchronized (this) {
+            System.arraycopy(map, blockNum, p, 0, count);
+        }
+        int i = 0;
+        while (i < count) {
+            int j = i + 1;
+            while (j < count && p[j] == p[j - 1] + 1) {
+                j++;
+            }
+            int rc;
+            if (i == 0 && j == count) {
+                rc = lower.readExtent(p[0], count, data);
+            } else {
+                byte[] run = new byte[(j - i) * blockSize];
+                rc = lower.readExtent(p[i], j - i, run);
+                System.arraycopy(run, 0, data, i * blockSize, run.length);
+            }
+            if (rc < 0) {
+                return rc;
+            }
+            i = j;
+        }
+        return 0;
+    }
+
+    public int write(int blockNum, byte[] data) {
+        return writeExtent(blockNum, 1, data);
+    }
+
+    /** Writes an extent.  Blocks that duplicate existing ones cost no
+     * write; the rest are written with one operation per physically
+     * contiguous run.  If it fails, the mapping is left as it was.
+     */
+    public int writeExtent(int blockNum, int count, byte[] data) {
+        synchronized (writeLock) {
+            int rc = placeExtent(blockNum, count, data);
+            if (rc == Kernel.ERROR_NO_SPACE) {
+                // The only free blocks may be ones freed since the last
+                // flush, or the block may have been shared when it was
+                // saved; a flush makes either usable
+                saveTables();
+                rc = placeExtent(blockNum, count, data);
+            }
+            return rc;
+        }
+    }
+
+    /** Places an extent and writes it, undoing every change to the
+     * mapping, reference counts and index if either fails.
+     * Caller must hold writeLock.
+     * @return zero or an error code
+     */
+    private int placeExtent(int blockNum, int count, byte[] data) {
+        undo = new ArrayList<int[]>();
+        try {
+            int[] target = new int[count];
+            HashMap<Integer, Integer> pending = new HashMap<Integer, Integer>();
+            for (int i = 0; i < count; i++) {
+                target[i] = place(blockNum + i, data, i * blockSize, pending);
+                if (target[i] == Kernel.ERROR_NO_SPACE) {
+                    rollback();
+                    return target[i];
+                }
+                if (target[i] >= 0) {
+                    pending.put(target[i], i * blockSize);
+                }
+            }
+            int i = 0;
+            while (i < count) {
+                if (target[i] < 0) {
+                    i++;
+                    continue;
+                }
+                int j = i + 1;
+                while (j < count && target[j] == target[j - 1] + 1) {
+                    j++;
+                }
+                int rc;
+                if (i == 0 && j == count) {
+                    rc = lower.writeExtent(target[0], count, data);
+                } else {
+                    rc = lower.writeExtent(target[i], j - i,
+                        Arrays.copyOfRange(data, i * blockSize, j * blockSize));
+                }
+                if (rc != 0) {
+                    rollback();
+                    return rc;
+                }
+                i = j;
+            }
+            return 0;
+        } finally {
+            undo = null;
+        }
+    } // placeExtent
+
+    /** Undoes the changes logged in undo, newest first. */
+    private synchronized void rollback() {
+        ArrayList<int[]> log = undo;
+        undo = null;
+        for (int k = log.size() - 1; k >= 0; k--) {
+            int[] u = log.get(k);
+            switch (u[0]) {
+            case UNDO_MAP:
+                map[u[1]] = u[2];
+                break;
+            case UNDO_REFS:
+                refs[u[1]] = u[2];
+                break;
+            case UNDO_INSERT:
+                unindex(u[1]);
+                break;
+            case UNDO_UNINDEX:
+                insert(((long) u[3] << 32) | (u[4] & 0xffffffffL), u[2], u[1]);
+                break;
+            case UNDO_RELEASED:
+                released.clear(u[1]);
+                break;
+            }
+        }
+    } // rollback
+
+    /** Sets a logical block's physical block, logging the change.
+     * Caller must hold the lock. */
+    private void setMap(int b, int p) {
+        if (undo != null) {
+            undo.add(new int[] { UNDO_MAP, b, map[b] });
+        }
+        map[b] = p;
+    }
+
+    /** Sets a physical block's reference count, logging the change.
+     * Caller must hold the lock. */
+    private void setRefs(int p, int n) {
+        if (undo != null) {
+            undo.add(new int[] { UNDO_REFS, p - dataStart, refs[p - dataStart] });
+        }
+        refs[p - dataStart] = n;
+    }
+
+    public int getBlockSize() {
+        return blockSize;
+    }
+
+    public int getBlockCount() {
+        return dataBlocks;
+    }
+
+    /** Saves the mapping and fingerprints, and makes blocks freed since
+     * the last flush reusable.
+     * @return zero or an error code
+     */
+    public int flush() {
+        synchronized (writeLock) {
+            saveTables();
+        }
+        return lower.flush();
+    }
+
+    /////////////////////////////////////////// Placement
+
+    /** Decides where a logical block's new contents go, updating the
+     * mapping, reference counts and index.  Caller must hold writeLock.
+     * @param b the logical block
+     * @param data the buffer holding the contents
+     * @param off where they start in it
+     * @param pending physical blocks chosen earlier in this extent but
+     *      not yet written, with the offsets of their data
+     * @return the physical block to write, -1 if nothing needs writing,
+     *      or ERROR_NO_SPACE
+     */
+    private int place(int b, byte[] data, int off,
+                      HashMap<Integer, Integer> pending)
+    {
+        long[] h = hash(data, off, blockSize);
+        writes++;
+        int match = lookup(h[0], (int) h[1]);
+        if (match >= 0 && same(match, data, off, pending)) {
+            synchronized (this) {
+                if (map[b] != match) {
+                    setRefs(match, refs[match - dataStart] + 1);
+                    release(map[b]);
+                    setMap(b, match);
+                }
+            }
+            duplicates++;
+            return -1;
+        }
+        if (match >= 0) {
+            collisions++;
+        }
+        synchronized (this) {
+            int p = map[b];
+            if (refs[p - dataStart] > 1 || !ownedWhenSaved(b, p)) {
+                p = allocate();
+                if (p < 0) {
+                    return Kernel.ERROR_NO_SPACE;
+                }
+                setRefs(p, 1);
+                release(map[b]);
+                setMap(b, p);
+            } else {
+                unindex(p);
+            }
+            if (match < 0) {
+                insert(h[0], (int) h[1], p);
+            }
+            return p;
+        }
+    } // place
+
+    /** Checks whether a logical block may overwrite its physical block in
+     * place: whether the saved tables give the physical block to no other
+     * logical block, so a crash cannot leave another logical block
+     * reading these contents.  Caller must hold the lock.
+     */
+    private boolean ownedWhenSaved(int b, int p) {
+        int n = savedRefs[p - dataStart];
+        return n == 0 || (n == 1 && savedMap[b] == p);
+    } // ownedWhenSaved
+
+    /** Checks that a physical block holds the given data.
+     * Caller must hold writeLock.
+     */
+    private boolean same(int p, byte[] data, int off,
+                         HashMap<Integer, Integer> pending)
+    {
+        Integer at = pending.get(p);
+        byte[] old;
+        int oldOff = 0;
+        if (at != null) {
+            old = data;
+            oldOff = at;
+        } else {
+            old = new byte[blockSize];
+            if (lower.read(p, old) < 0) {
+                return false;
+            }
+            verifyReads++;
+        }
+        for (int i = 0; i < blockSize; i++) {
+            if (old[oldOff + i] != data[off + i]) {
+                return false;
+            }
+        }
+        return true;
+    } // same
+
+    /** Drops one reference to a physical block.
+     * Caller must hold the lock.
+     */
+    private void release(int p) {
+        setRefs(p, refs[p - dataStart] - 1);
+        if (refs[p - dataStart] == 0) {
+            unindex(p);
+            if (undo != null) {
+                undo.add(new int[] { UNDO_RELEASED, p - dataStart });
+            }
+            released.set(p - dataStart);
+        }
+    } // release
+
+    /** Allocates an unused physical block.  Blocks freed since the last
+     * flush are not used; if there is nothing else, writeExtent flushes
+     * and tries again.  Caller must hold the lock and writeLock.
+     * @return the block, or -1 if there is none
+     */
+    private int allocate() {
+        for (int n = 0; n < dataBlocks; n++) {
+            int i = rover;
+            rover = (rover + 1) % dataBlocks;
+            if (refs[i] == 0 && !released.get(i)) {
+                return dataStart + i;
+            }
+        }
+        return -1;
+    } // allocate
+
+    /////////////////////////////////////////// The index
+
+    /** @return the slot a fingerprint starts probing at */
+    private int home(long h) {
+        return (int) (h ^ (h >>> 32)) & (slots - 1);
+    }
+
+    /** Finds a physical block by fingerprint.
+     * @return the block, or -1
+     */
+    private synchronized int lookup(long h, int check) {
+        for (int s = home(h); ; s = (s + 1) & (slots - 1)) {
+            int p = index.getInt(s * SLOT + 12) - 1;
+            if (p < 0) {
+                return -1;
+            }
+            if (index.getLong(s * SLOT) == h
+                && index.getInt(s * SLOT + 8) == check)
+            {
+                return p;
+            }
+        }
+    } // lookup
+
+    /** Adds a fingerprint.  Caller must hold the lock. */
+    private void insert(long h, int check, int p) {
+        int s = home(h);
+        while (index.getInt(s * SLOT + 12) != 0) {
+            s = (s + 1) & (slots - 1);
+        }
+        index.putLong(s * SLOT, h).putInt(s * SLOT + 8, check)
+            .putInt(s * SLOT + 12, p + 1);
+        if (undo != null) {
+            undo.add(new int[] { UNDO_INSERT, p });
+        }
+        print[p - dataStart] = h;
+        this.check[p - dataStart] = check;
+    } // insert
+
+    /** Removes a physical block from the index, shifting later entries of
+     * the probe sequence back.  Caller must hold the lock.
+     */
+    private void unindex(int p) {
+        long h = print[p - dataStart];
+        if (h == 0) {
+            return;
+        }
+        print[p - dataStart] = 0;
+        if (undo != null) {
+            undo.add(new int[] { UNDO_UNINDEX, p, check[p - dataStart],
+                                 (int) (h >>> 32), (int) h });
+        }
+        int s = home(h);
+        while (index.getInt(s * SLOT + 12) != p + 1) {
+            if (index.getInt(s * SLOT + 12) == 0) {
+                return;
+            }
+            s = (s + 1) & (slots - 1);
+        }
+        int hole = s;
+        for (s = (s + 1) & (slots - 1); index.getInt(s * SLOT + 12) != 0;
+             s = (s + 1) & (slots - 1))
+        {
+            int want = home(index.getLong(s * SLOT));
+            if (((s - want) & (slots - 1)) >= ((s - hole) & (slots - 1))) {
+                for (int k = 0; k < SLOT; k += 4) {
+                    index.putInt(hole * SLOT + k, index.getInt(s * SLOT + k));
+                }
+                hole = s;
+            }
+        }
+        index.putLong(hole * SLOT, 0).putLong(hole * SLOT + 8, 0);
+    } // unindex
+
+    /** MurmurHash3 (x64, 128-bit) of a block.
+     * @return the two 64-bit halves
+     */
+    static long[] hash(byte[] data, int off, int len) {
+        final long c1 = 0x87c37b91114253d5L;
+        final long c2 = 0x4cf5ad432745937fL;
+        ByteBuffer bb = ByteBuffer.wrap(data, off, len)
+            .order(ByteOrder.LITTLE_ENDIAN);
+        long h1 = 0x9747b28cL;
+        long h2 = 0x9747b28cL;
+        int blocks = len / 16;
+        for (int i = 0; i < blocks; i++) {
+            long k1 = bb.getLong(off + i * 16);
+            long k2 = bb.getLong(off + i * 16 + 8);
+            k1 *= c1;
+            k1 = Long.rotateLeft(k1, 31);
+            k1 *= c2;
+            h1 ^= k1;
+            h1 = Long.rotateLeft(h1, 27);
+            h1 += h2;
+            h1 = h1 * 5 + 0x52dce729;
+            k2 *= c2;
+            k2 = Long.rotateLeft(k2, 33);
+            k2 *= c1;
+            h2 ^= k2;
+            h2 = Long.rotateLeft(h2, 31);
+            h2 += h1;
+            h2 = h2 * 5 + 0x38495ab5;
+        }
+        long k1 = 0;
+        long k2 = 0;
+        for (int i = len - 1; i >= blocks * 16; i--) {
+            long b = data[off + i] & 0xffL;
+            if (i - blocks * 16 >= 8) {
+                k2 = (k2 << 8) | b;
+            } else {
+                k1 = (k1 << 8) | b;
+            }
+        }
+        k2 *= c2;
+        k2 = Long.rotateLeft(k2, 33);
+        k2 *= c1;
+        h2 ^= k2;
+        k1 *= c1;
+        k1 = Long.rotateLeft(k1, 31);
+        k1 *= c2;
+        h1 ^= k1;
+        h1 ^= len;
+        h2 ^= len;
+        h1 += h2;
+        h2 += h1;
+        h1 = fmix(h1);
+        h2 = fmix(h2);
+        h1 += h2;
+        h2 += h1;
+        // Zero marks an empty entry in print[]
+        return new long[] { h1 == 0 ? 1 : h1, h2 };
+    } // hash
+
+    private static long fmix(long k) {
+        k ^= k >>> 33;
+        k *= 0xff51afd7ed558ccdL;
+        k ^= k >>> 33;
+        k *= 0xc4ceb9fe1a85ec53L;
+        k ^= k >>> 33;
+        return k;
+    } // fmix
+
+    /////////////////////////////////////////// Metadata
+
+    /** Writes the tables to the older region, then its header, and makes
+     * released blocks reusable.  Caller must hold writeLock.
+     */
+    private void saveTables() {
+        byte[] table = new byte[(regionBlocks - 1) * blockSize];
+        ByteBuffer bb = ByteBuffer.wrap(table);
+        synchronized (this) {
+            for (int b = 0; b < dataBlocks; b++) {
+                bb.putInt(map[b]);
+            }
+            for (int i = 0; i < dataBlocks; i++) {
+                bb.putLong(print[i]).putInt(check[i]);
+            }
+        }
+        CRC32 crc = new CRC32();
+        crc.update(table, 0, table.length);
+        flushSeq++;
+        int region = (flushSeq % 2 == 0) ? 0 : regionBlocks;
+        lower.writeExtent(region + 1, regionBlocks - 1, table);
+        byte[] header = new byte[blockSize];
+        ByteBuffer.wrap(header).putInt(MAGIC).putLong(flushSeq)
+            .putInt(dataBlocks).putLong(crc.getValue());
+        lower.write(region, header);
+        // writeLock is held, so the mapping is still the one just saved
+        synchronized (this) {
+            released.clear();
+            Arrays.fill(savedRefs, 0);
+            for (int b = 0; b < dataBlocks; b++) {
+                savedMap[b] = map[b];
+                savedRefs[map[b] - dataStart]++;
+            }
+        }
+    } // saveTables
+
+    /** Loads the newest valid tables, or starts with every logical block
+     * on its own physical block.  Called once, at power on.
+     * @return the number of physical blocks in use
+     */
+    public int load() {
+        synchronized (writeLock) {
+            long best = 0;
+            for (int region : new int[] { 0, regionBlocks }) {
+                byte[] header = new byte[blockSize];
+                lower.read(region, header);
+                ByteBuffer hb = ByteBuffer.wrap(header);
+                if (hb.getInt() != MAGIC) {
+                    continue;
+                }
+                long seq = hb.getLong();
+                if (seq <= best || hb.getInt() != dataBlocks) {
+                    continue;
+                }
+                byte[] table = new byte[(regionBlocks - 1) * blockSize];
+                lower.readExtent(region + 1, regionBlocks - 1, table);
+                CRC32 crc = new CRC32();
+                crc.update(table, 0, table.length);
+                if (hb.getLong() != crc.getValue()) {
+                    continue;
+                }
+                best = seq;
+                ByteBuffer bb = ByteBuffer.wrap(table);
+                for (int b = 0; b < dataBlocks; b++) {
+                    map[b] = bb.getInt();
+                }
+                for (int i = 0; i < dataBlocks; i++) {
+                    print[i] = bb.getLong();
+                    check[i] = bb.getInt();
+                }
+            }
+            flushSeq = best;
+            synchronized (this) {
+                if (best == 0) {
+                    for (int b = 0; b < dataBlocks; b++) {
+                        map[b] = dataStart + b;
+                    }
+                    Arrays.fill(print, 0);
+                }
+                Arrays.fill(refs, 0);
+                for (int b = 0; b < dataBlocks; b++) {
+                    refs[map[b] - dataStart]++;
+                }
+                for (int i = 0; i < slots * SLOT; i += 8) {
+                    index.putLong(i, 0);
+                }
+                for (int i = 0; i < dataBlocks; i++) {
+                    if (refs[i] > 0 && print[i] != 0) {
+                        insert(print[i], check[i], dataStart + i);
+                    } else {
+                        print[i] = 0;
+                    }
+                }
+            }
+            saveTables();
+            return inUse();
+        }
+    } // load
+
+    /** @return the number of physical blocks in use */
+    private synchronized int inUse() {
+        int n = 0;
+        for (int r : refs) {
+            if (r > 0) {
+                n++;
+            }
+        }
+        return n;
+    }
+
+    /** @return a one-line summary of the layer's activity */
+    public synchronized String getStats() {
+        return writes + " block writes, " + duplicates + " duplicates, "
+            + collisions + " fingerprint collisions, " + verifyReads
+            + " verify reads, " + inUse() + " of " + dataBlocks
+            + " blocks in use";
+    }
+}
@@ -44,6 +44,13 @@ public class Disk implements Runnable {
     /** Current location of the read/write head */
     protected int currentBlock = 0;
 
+    /** The way the head last moved: 1 toward higher block numbers, -1
+     * toward lower ones */
+    protected int direction = 1;
+
+    /** Total distance the head has moved, in blocks */
+    protected long seekDistance;
+
     /** The data stored on the disk */
     protected byte data[];
 
@@ -141,6 +148,26 @@ public class Disk implements Runnable {
         }
     } // constructor
 
+    /** Creates a new Disk with the given contents.
+     * The DISK file is not consulted.  A subclass that keeps its blocks
+     * somewhere else may pass null, in which case it must override
+     * readData, writeData, checkpoint, and flush.
+     *
+     * @param size the total size of this disk, in blocks.
+     * @param contents the initial contents, DISK_SIZE * BLOCK_SIZE bytes
+     * long, or null.
+     */
+    protected Disk(int size, byte contents[]) {
+        this.DISK_SIZE = size;
+        if (size < 1) {
+            throw new DiskException("A disk must have at least one block!");
+        }
+        if (contents != null && contents.length != size * BLOCK_SIZE) {
+            throw new DiskException("Contents are the wrong size");
+        }
+        data = contents;
+    } // constructor
+
     /////////////////////////////////////////// Methods
 
     /** Saves the contents of this Disk.
@@ -163,12 +190,72 @@ public class Disk implements Runnable {
         }
     } // flush
 
+    /** Returns the size of a block on this disk.
+     * A plain Disk always has BLOCK_SIZE-byte blocks; subclasses may differ.
+     * @return the block size in bytes.
+     */
+    public int getBlockSize() {
+        return BLOCK_SIZE;
+    } // getBlockSize
+
+    /** Returns the current location of the read/write head.
+     * @return the block number of the last block transferred.
+     */
+    public synchronized int getCurrentBlock() {
+        return currentBlock;
+    } // getCurrentBlock
+
+    /** Returns the way the read/write head last moved.
+     * @return 1 if toward higher block numbers, -1 if toward lower ones.
+     */
+    public synchronized int getDirection() {
+        return direction;
+    } // getDirection
+
+    /** Returns the total distance the read/write head has moved.
+     * @return the distance in blocks.
+     */
+    public synchronized long getSeekDistance() {
+        return seekDistance;
+    } // getSeekDistance
+
+    /** Records a seek of the head, for getDirection and getSeekDistance.
+     * Subclasses that override delay should call this.
+     * @param targetBlock the block number to which we have to seek.
+     * @return the distance to it, in blocks.
+     */
+    protected synchronized int seek(int targetBlock) {
+        int distance = Math.abs(targetBlock - currentBlock);
+        seekDistance += distance;
+        if (distance != 0) {
+            direction = targetBlock > currentBlock ? 1 : -1;
+        }
+        return distance;
+    } // seek
+
+    /** Saves the contents of this Disk without shutting it down.
+     * A plain Disk has no record of what has changed, so it rewrites the
+     * entire DISK file.  Subclasses that do better should override this.
+     * @return the number of blocks written.
+     */
+    public int checkpoint() {
+        try {
+            FileOutputStream os = new FileOutputStream("DISK");
+            os.write(data);
+            os.close();
+        } catch(Exception e) {
+            e.printStackTrace();
+            System.exit(1);
+        }
+        return DISK_SIZE;
+    } // checkpoint
+
     /** Sleeps for a while to simulate the delay in seeking and transferring
      * data.
      * @param targetBlock the block number to which we have to seek.
      */
     protected void delay(int targetBlock) {
-        int sleepTime = 10 + Math.abs(targetBlock - currentBlock) / 5;
+        int sleepTime = 10 + seek(targetBlock) / 5;
         try {
             Thread.sleep(sleepTime);
         } catch (Exception e) {
@@ -176,6 +263,32 @@ public class Disk implements Runnable {
         }
     } // delay
 
+    /** Copies one block from the simulated platter into a buffer.
+     * This is the only place the contents of a block are read, so
+     * subclasses that keep the data somewhere other than the
+     * <tt>data</tt> array can override it.
+     * @param blockNumber the block to read.
+     * @param buffer where to put the BLOCK_SIZE bytes read.
+     */
+    protected void readData(int blockNumber, byte buffer[]) {
+        System.arraycopy(
+            data, blockNumber * BLOCK_SIZE,
+            buffer, 0,
+            BLOCK_SIZE);
+    } // readData
+
+    /** Copies one block from a buffer onto the simulated platter.
+     * @param blockNumber the block to write.
+     * @param buffer the BLOCK_SIZE bytes to store.
+     * @see #readData
+     */
+    protected void writeData(int blockNumber, byte buffer[]) {
+        System.arraycopy(
+            buffer, 0,
+            data, blockNumber * BLOCK_SIZE,
+            BLOCK_SIZE);
+    } // writeData
+
     /** Starts a new read operation.
     * @param blockNumber The block number to read from.
     * @param buffer A data area to hold the data read.  This array must be
@@ -282,16 +395,10 @@ public class Disk implements Runnable {
 
             // Move the data.
             if (isWriting) {
-                System.arraycopy(
-                    buffer, 0,
-                    data, targetBlock * BLOCK_SIZE,
-                    BLOCK_SIZE);
+                writeData(targetBlock, buffer);
                 writeCount++;
             } else {
-                System.arraycopy(
-                    data, targetBlock * BLOCK_SIZE,
-                    buffer, 0,
-                    BLOCK_SIZE);
+                readData(targetBlock, buffer);
                 readCount++;
             }
 
@@ -1,4 +1,6 @@
 import java.util.*;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
 
 /**
  * Elevator is a scheduling class
@@ -7,113 +9,627 @@ import java.util.*;
  *      emulate hard disk arm, by scheduling IO requests in one direction at a time
  *      ie schedule only increasing block numbers until there are no more increasing,
  *      then switch direction and schedule only in deacreasing order.
+ *   Completions are collected in endIO(); a QueueingDisk may report a whole
+ *      batch of them with a single interrupt.
+ *   Each request has an I/O priority class (Kernel.IO_XXX).  Realtime
+ *      requests go before best-effort ones; idle requests go only when no
+ *      other request has been queued or in progress for idleGrace ms, so
+ *      background work such as scrubbing waits for the disk to go quiet.
+ *      If the grace period has not yet run out, a timer dispatches them
+ *      when it does.  An idle request already at the disk is not
+ *      preempted, so it can delay a foreground request by at most one
+ *      transfer.
+ *   Within a class, requests are taken in one of three orders:
+ *      FIFO, in the order they arrived;
+ *      SCAN, the nearest request ahead of the head in the way it is
+ *      moving, turning around when there is none;
+ *      SPTF (shortest positioning time first), the nearest request either
+ *      way, less an allowance of one block for every <code>aging</code> ms
+ *      it has waited, so that far-off requests are not starved.
+ *   Anticipation (optional): a process reading synchronously leaves the
+ *      queue empty between its requests, and the head would be sent off
+ *      to some other process's distant block.  So when a read finishes
+ *      and its process has been issuing nearby requests with short think
+ *      times, other best-effort and idle requests are held back for a
+ *      little longer than that process's mean think time (at most
+ *      maxAnticipation ms) in case it asks for a nearby block again.
+ *      Think times and seek distances are averaged per process.
  * @author <a href="mailto:bartlantz@gmail.com">Bart Lantz</a>
  * @version 1.0
  */
-public class Elevator {
+public class Elevator implements BlockDevice {
     private static Disk disk;
     // PriorityQueue or ArrayList or LinkedList
-    private Queue<Request> rQueue;
-    private boolean diskIsBusy;
-    Request current;
+    /** Waiting requests, one queue per priority class */
+    private List<Queue<Request>> rQueues;
+    /** Requests handed to the disk but not yet completed, oldest first */
+    private LinkedList<Request> inFlight;
+    /** How many requests the disk will accept at once */
+    private int depth;
+    /** Scratch space for collecting completions from a QueueingDisk */
+    private int[] doneBlocks;
+    private byte[][] doneBuffers;
+    /** Foreground (not idle) requests submitted but not yet finished */
+    private int foreground;
+    /** When the last foreground request finished */
+    private long lastForeground = System.currentTimeMillis();
+    /** How long the disk must be free of foreground requests before idle
+     * requests are dispatched (ms) */
+    private int idleGrace;
+    /** Dispatches requests held back for the idle grace period or for
+     * anticipation when the wait runs out */
+    private Timer timer;
+    /** When timer's next dispatch is due (ms), or zero if none is */
+    private long wakeup;
+    /** The longest time to hold the disk for a process (ms), or zero if
+     * anticipation is off */
+    private int maxAnticipation;
+    /** Per-process think times and seek distances, by process id */
+    private LinkedHashMap<Integer, Pattern> patterns
+        = new LinkedHashMap<Integer, Pattern>(16, 0.75f, true) {
+            protected boolean removeEldestEntry(Map.Entry<Integer, Pattern> e) {
+                return size() > 64;
+            }
+        };
+    /** The process the disk is being held for, or zero */
+    private int anticipated;
+    /** When the hold for anticipated ends (ms) */
+    private long anticipateUntil;
+    /** How many times the disk was held, and how many of those the
+     * process came back in time */
+    private long holds;
+    private long holdHits;
+
+    /**
+     * What the Elevator has seen of one process's requests
+     */
+    private static class Pattern {
+        /** Mean time from a request finishing to the process's next
+         * request (ms) */
+        double thinkTime;
+        /** Mean distance from the end of one request to the start of the
+         * next (blocks) */
+        double seekDistance;
+        /** When the last request finished (ms), or zero */
+        long lastDone;
+        /** The block after the last request */
+        int lastEnd;
+    }
+
+    /** Time from submit to completion of each request (us) */
+    private Metrics.Histogram latency;
+    /** Time the disk has had requests in flight (us) */
+    private LongAdder busy;
+    /** When busy time was last credited, or when the disk last went from
+     * idle to busy (ns); zero while it is idle */
+    private long busySince;
+
+    /** Seek distances up to this count as nearby */
+    private static final int NEARBY = 16;
+
+    /** Policies for ordering requests within a class */
+    public static final int FIFO = 0;
+    public static final int SCAN = 1;
+    public static final int SPTF = 2;
+
+    /** How requests within a class are ordered: FIFO, SCAN or SPTF */
+    private int policy;
+    /** Under SPTF, a request is let off one block of seek for every this
+     * many ms it has waited */
+    private int aging;
+    /** Where the head will be once the requests in flight are done */
+    private int lastDispatched;
+
     public Elevator(Disk d) {
-        disk = d;
-        rQueue = new LinkedList<Request>();
-        diskIsBusy = false;
+        this(d, 50);
     }
 
-    public int read(int blockNum, byte[] data) {
-        Request r = new Request(blockNum, data, true);
+    /**
+     * Creates an Elevator
+     *
+     * @param d the disk
+     * @param idleGrace how long the disk must be free of foreground
+     * requests before idle requests are dispatched (ms)
+     */
+    public Elevator(Disk d, int idleGrace) {
+        this(d, idleGrace, 0);
+    }
 
-        synchronized(this) {
-            rQueue.add(r);
-        }
-        checkCurrent();
-        // keep checking to see if finished
+    /**
+     * Creates an Elevator
+     *
+     * @param d the disk
+     * @param idleGrace how long the disk must be free of foreground
+     * requests before idle requests are dispatched (ms)
+     * @param maxAnticipation the longest time to hold the disk for a
+     * process that is likely to read nearby again (ms), or zero for no
+     * anticipation
+     */
+    public Elevator(Disk d, int idleGrace, int maxAnticipation) {
+        this(d, idleGrace, maxAnticipation, FIFO, 0);
+    }
 
-        synchronized(this) {
-            while (!r.getFinished()) {
-                try {
-                    this.wait();
-                } catch (InterruptedException e) {
-                    e.printStackTrace();
-                }
-            }
+    /**
+     * Creates an Elevator
+     *
+     * @param d the disk
+     * @param idleGrace how long the disk must be free of foreground
+     * requests before idle requests are dispatched (ms)
+     * @param maxAnticipation the longest time to hold the disk for a
+     * process that is likely to read nearby again (ms), or zero for no
+     * anticipation
+     * @param policy FIFO, SCAN or SPTF
+     * @param aging under SPTF, a request is let off one block of seek for
+     * every this many ms it has waited
+     */
+    public Elevator(Disk d, int idleGrace, int maxAnticipation, int policy,
+                    int aging) {
+        disk = d;
+        this.policy = policy;
+        this.aging = aging;
+        this.maxAnticipation = maxAnticipation;
+        this.idleGrace = idleGrace;
+        rQueues = new ArrayList<Queue<Request>>(Kernel.IO_IDLE + 1);
+        for (int i = 0; i <= Kernel.IO_IDLE; i++) {
+            rQueues.add(new LinkedList<Request>());
         }
-        // I run this in nextRequest
-        //disk.beginRead(blockNum,data);
+        inFlight = new LinkedList<Request>();
+        if (disk instanceof QueueingDisk) {
+            depth = ((QueueingDisk) disk).getQueueDepth();
+        } else {
+            depth = 1;
+        }
+        doneBlocks = new int[depth];
+        doneBuffers = new byte[depth][];
+        Metrics m = Kernel.getMetrics();
+        latency = m.histogram("disk.latency_us");
+        busy = m.counter("disk.busy_us");
+        m.gauge("elevator.queued", new LongSupplier() {
+            public long getAsLong() {
+                return getQueued();
+            }
+        });
+        m.gauge("elevator.in_flight", new LongSupplier() {
+            public long getAsLong() {
+                return getInFlight();
+            }
+        });
+    }
+
+    public int read(int blockNum, byte[] data) {
+        Request r = new Request(blockNum, data, true);
+        r.setPriority(Kernel.getIoPriority());
+        submit(r);
         Library.output("read finished: " + blockNum + "\n");
         return 0;
     }
 
     public int write(int blockNum, byte[] data) {
         Request r = new Request(blockNum, data, false);
-        synchronized(this) {
-            rQueue.add(r);
-        }
-        checkCurrent();
-        synchronized (this) {
-            while (!r.getFinished()) {
-                try {
-                    this.wait();
-                } catch (InterruptedException e) {
-                    e.printStackTrace();
-                }
-            }
-        }
+        r.setPriority(Kernel.getIoPriority());
+        submit(r);
         Library.output("write finished: " + blockNum + "\n");
         return 0;
     }
 
     /**
-     * Starts next request if no current running IO request
+     * Reads an extent of contiguous blocks.
+     * An ExtentDisk transfers up to getMaxExtent() blocks per request;
+     * other disks get one request per block.
+     *
+     * @param blockNum the first block
+     * @param count the number of blocks
+     * @param data where to put the data
+     * @return an <code>int</code> value
+     */
+    public int readExtent(int blockNum, int count, byte[] data) {
+        transferExtent(blockNum, count, data, true, Kernel.getIoPriority());
+        Library.output("read finished: " + blockNum + "+" + count + "\n");
+        return 0;
+    }
+
+    /**
+     * Reads an extent on behalf of a background task such as the
+     * scrubber.  The requests are in the idle class, whatever the calling
+     * thread's class, and nothing is printed.
+     *
+     * @param blockNum the first block
+     * @param count the number of blocks
+     * @param data where to put the data
+     * @return zero
+     */
+    public int readBackground(int blockNum, int count, byte[] data) {
+        transferExtent(blockNum, count, data, true, Kernel.IO_IDLE);
+        return 0;
+    }
+
+    /**
+     * Returns how long the disk has had no foreground work
      *
+     * @return milliseconds since the last foreground request finished,
+     * or zero if one is queued or in progress
      */
-    private void checkCurrent() {
-        // if no current request, we must start up queue
-        if (current == null) {
-            nextRequest();
-            //endIO();
+    public synchronized long getIdleTime() {
+        if (foreground > 0) {
+            return 0;
         }
+        return System.currentTimeMillis() - lastForeground;
     }
-    
+
     /**
-     * endIO is called when Disk finishes an IO Request
+     * Writes an extent of contiguous blocks.
      *
+     * @param blockNum the first block
+     * @param count the number of blocks
+     * @param data the data to write
      * @return an <code>int</code> value
+     * @see #readExtent
      */
-    public int endIO() {
-        // this is called when the Disk finishes an IO Request
-        // notify waiting threads so they can check if their IO request has finished.
+    public int writeExtent(int blockNum, int count, byte[] data) {
+        transferExtent(blockNum, count, data, false, Kernel.getIoPriority());
+        Library.output("write finished: " + blockNum + "+" + count + "\n");
+        return 0;
+    }
 
-        synchronized(this) {
-            this.notifyAll();
+    /**
+     * Splits an extent into requests the disk can handle and waits for them
+     */
+    private void transferExtent(int blockNum, int count, byte[] data,
+                                boolean isRead, int priority) {
+        int blockSize = disk.getBlockSize();
+        if (disk instanceof ExtentDisk) {
+            int max = ((ExtentDisk) disk).getMaxExtent();
+            for (int done = 0; done < count; done += max) {
+                int n = Math.min(max, count - done);
+                Request r = new Request(blockNum + done, n, data,
+                                        done * blockSize, isRead);
+                r.setPriority(priority);
+                submit(r);
+            }
+            return;
         }
-        // fire off next IO request to Disk
-        if (rQueue.peek() != null) {
-            nextRequest();
+        // Plain disks transfer whole buffers starting at offset 0
+        byte[] block = new byte[blockSize];
+        for (int i = 0; i < count; i++) {
+            if (!isRead) {
+                System.arraycopy(data, i * blockSize, block, 0, blockSize);
+            }
+            Request r = new Request(blockNum + i, block, isRead);
+            r.setPriority(priority);
+            submit(r);
+            if (isRead) {
+                System.arraycopy(block, 0, data, i * blockSize, blockSize);
+            }
         }
+    }
 
+    /** @return the number of requests waiting to go to the disk */
+    public synchronized int getQueued() {
+        int n = 0;
+        for (Queue<Request> q : rQueues) {
+            n += q.size();
+        }
+        return n;
+    }
+
+    /** @return the number of requests at the disk */
+    public synchronized int getInFlight() {
+        return inFlight.size();
+    }
+
+    /**
+     * Returns a summary of anticipation
+     *
+     * @return a one-line summary
+     */
+    public synchronized String getStats() {
+        return "elevator held the disk " + holds + " times, " + holdHits
+            + " hits";
+    }
+
+    /** @return the size of a disk block in bytes */
+    public int getBlockSize() {
+        return disk.getBlockSize();
+    }
+
+    /** @return the number of blocks on the disk */
+    public int getBlockCount() {
+        return disk.DISK_SIZE;
+    }
 
+    /** Nothing is held back by the Elevator.
+     * @return zero
+     */
+    public int flush() {
         return 0;
     }
-    public synchronized int nextRequest() {
-        current = (Request) rQueue.poll();
-        if (current != null) {
-            int blockNum = current.getBlocks();
-            byte[] data = current.getData();
-            if (current.getReadRequest() == true) {
+
+    /**
+     * Queues a request and blocks until the disk has completed it
+     *
+     * @param r the request
+     */
+    private synchronized void submit(Request r) {
+        long start = System.nanoTime();
+        boolean background = r.getPriority() == Kernel.IO_IDLE;
+        if (!background) {
+            foreground++;
+        }
+        r.setPid(Kernel.getCurrentPid());
+        if (maxAnticipation > 0 && r.getPid() != 0) {
+            observe(r);
+        }
+        r.setQueuedAt(System.currentTimeMillis());
+        rQueues.get(r.getPriority()).add(r);
+        dispatch();
+        // keep checking to see if finished
+        while (!r.getFinished()) {
+            try {
+                this.wait();
+            } catch (InterruptedException e) {
+                e.printStackTrace();
+            }
+        }
+        latency.record((System.nanoTime() - start) / 1000);
+        if (!background) {
+            foreground--;
+            lastForeground = System.currentTimeMillis();
+            if (foreground == 0) {
+                // start the grace period for idle requests
+                dispatch();
+            }
+        }
+    }
+
+    /**
+     * endIO is called when Disk finishes an IO Request.
+     * A QueueingDisk may have finished several requests since its last
+     * interrupt, so all of its posted completions are collected here
+     * in one pass and their waiters are woken together.
+     *
+     * @return an <code>int</code> value
+     */
+    public synchronized int endIO() {
+        if (disk instanceof QueueingDisk) {
+            int n = ((QueueingDisk) disk).drainCompletions(doneBlocks,
+                                                           doneBuffers);
+            for (int i = 0; i < n; i++) {
+                complete(doneBlocks[i], doneBuffers[i]);
+                doneBuffers[i] = null;
+            }
+        } else {
+            Request r = inFlight.poll();
+            if (r != null) {
+                finished(r);
+            }
+        }
+        // Credit the busy time so far on every completion, so a disk that
+        // never drains still shows up as busy
+        if (busySince != 0) {
+            long now = System.nanoTime();
+            busy.add((now - busySince) / 1000);
+            busySince = inFlight.isEmpty() ? 0 : now;
+        }
+        // notify waiting threads so they can check if their IO request has finished.
+        this.notifyAll();
+        // fire off next IO requests to Disk
+        dispatch();
+        return 0;
+    }
+
+    /**
+     * Marks the in-flight request matching a completion as finished
+     *
+     * @param blockNum the block number of the completed operation
+     * @param data the buffer of the completed operation
+     */
+    private void complete(int blockNum, byte[] data) {
+        for (Iterator<Request> it = inFlight.iterator(); it.hasNext(); ) {
+            Request r = it.next();
+            if (r.getData() == data && r.getBlocks() == blockNum) {
+                it.remove();
+                finished(r);
+                return;
+            }
+        }
+    }
+
+    /**
+     * Marks a request finished and decides whether to hold the disk for
+     * its process.  Caller must hold the lock.
+     *
+     * @param r the request
+     */
+    private void finished(Request r) {
+        r.setFinished();
+        if (maxAnticipation == 0 || r.getPid() == 0) {
+            return;
+        }
+        Pattern p = patterns.get(r.getPid());
+        if (p == null) {
+            return;
+        }
+        long now = System.currentTimeMillis();
+        p.lastDone = now;
+        p.lastEnd = r.getBlocks() + r.getCount();
+        if (r.getReadRequest() && r.getPriority() != Kernel.IO_IDLE
+            && p.seekDistance <= NEARBY && p.thinkTime < maxAnticipation)
+        {
+            anticipated = r.getPid();
+            anticipateUntil = now
+                + Math.min(maxAnticipation, (long) (2 * p.thinkTime) + 1);
+            holds++;
+        }
+    }
+
+    /**
+     * Updates the think time and seek distance of a request's process.
+     * Caller must hold the lock.
+     *
+     * @param r a request just submitted
+     */
+    private void observe(Request r) {
+        Pattern p = patterns.get(r.getPid());
+        if (p == null) {
+            p = new Pattern();
+            // Assume a new process is sequential until it shows otherwise
+            patterns.put(r.getPid(), p);
+            return;
+        }
+        if (p.lastDone > 0) {
+            long think = System.currentTimeMillis() - p.lastDone;
+            p.thinkTime = 0.75 * p.thinkTime + 0.25 * think;
+        }
+        p.seekDistance = 0.75 * p.seekDistance
+            + 0.25 * Math.abs(r.getBlocks() - p.lastEnd);
+    }
+
+    /**
+     * Starts queued requests while the disk has room for them.
+     * Caller must hold the lock.
+     */
+    private void dispatch() {
+        while (inFlight.size() < depth) {
+            Request next = nextRequest();
+            if (next == null) {
+                break;
+            }
+            if (inFlight.isEmpty()) {
+                busySince = System.nanoTime();
+            }
+            inFlight.add(next);
+            int blockNum = next.getBlocks();
+            lastDispatched = blockNum;
+            byte[] data = next.getData();
+            if (disk instanceof ExtentDisk) {
+                ExtentDisk ed = (ExtentDisk) disk;
+                if (next.getReadRequest() == true) {
+                    ed.beginRead(blockNum, next.getCount(), data,
+                                 next.getOffset());
+                } else {
+                    ed.beginWrite(blockNum, next.getCount(), data,
+                                  next.getOffset());
+                }
+            } else if (next.getReadRequest() == true) {
                 disk.beginRead(blockNum, data);
             } else {
                 disk.beginWrite(blockNum, data);
             }
-            // set this request's flag to finished
-            current.setFinished();
-            //Library.output("Finished " + blockNum + "\n");
         }
-        return 0;
     }
-    
-}
 
+    /**
+     * Takes the next request to dispatch, in priority order.  If only
+     * idle requests are waiting and the grace period has not run out,
+     * arranges for dispatch() to be called when it does.
+     * Caller must hold the lock.
+     *
+     * @return the request, or null if none may go now
+     */
+    private Request nextRequest() {
+        if (!rQueues.get(Kernel.IO_REALTIME).isEmpty()) {
+            return take(rQueues.get(Kernel.IO_REALTIME));
+        }
+        if (anticipated != 0) {
+            Queue<Request> q = rQueues.get(Kernel.IO_BEST_EFFORT);
+            for (Iterator<Request> it = q.iterator(); it.hasNext(); ) {
+                Request r = it.next();
+                if (r.getPid() == anticipated) {
+                    it.remove();
+                    anticipated = 0;
+                    holdHits++;
+                    return r;
+                }
+            }
+            long wait = anticipateUntil - System.currentTimeMillis();
+            if (wait > 0) {
+                wakeAfter(wait);
+                return null;
+            }
+            anticipated = 0;
+        }
+        if (!rQueues.get(Kernel.IO_BEST_EFFORT).isEmpty()) {
+            return take(rQueues.get(Kernel.IO_BEST_EFFORT));
+        }
+        if (rQueues.get(Kernel.IO_IDLE).isEmpty() || foreground > 0) {
+            // the last foreground request to finish calls dispatch()
+            return null;
+        }
+        long wait = lastForeground + idleGrace - System.currentTimeMillis();
+        if (wait <= 0) {
+            return take(rQueues.get(Kernel.IO_IDLE));
+        }
+        wakeAfter(wait);
+        return null;
+    }
+
+    /**
+     * Takes the request the policy says should go next from a queue.
+     * Caller must hold the lock.
+     *
+     * @param queue a queue with at least one request
+     * @return the request
+     */
+    private Request take(Queue<Request> queue) {
+        if (policy == FIFO || queue.size() == 1) {
+            return queue.poll();
+        }
+        // Where the head will be when this request starts
+        int head = inFlight.isEmpty() ? disk.getCurrentBlock()
+                                      : lastDispatched;
+        Request best = null;
+        long bestCost = Long.MAX_VALUE;
+        if (policy == SCAN) {
+            int dir = disk.getDirection();
+            for (int pass = 0; pass < 2 && best == null; pass++) {
+                for (Request r : queue) {
+                    long ahead = (long) (r.getBlocks() - head) * dir;
+                    if (ahead >= 0 && ahead < bestCost) {
+                        best = r;
+                        bestCost = ahead;
+                    }
+                }
+                // Nothing ahead: turn around
+                dir = -dir;
+            }
+        } else {
+            long now = System.currentTimeMillis();
+            for (Request r : queue) {
+                long cost = Math.abs(r.getBlocks() - head)
+                    - (now - r.getQueuedAt()) / Math.max(1, aging);
+                if (cost < bestCost) {
+                    best = r;
+                    bestCost = cost;
+                }
+            }
+        }
+        queue.remove(best);
+        return best;
+    }
 
+    /**
+     * Arranges for dispatch() to be called after a while, unless it
+     * already will be by then.  Caller must hold the lock.
+     *
+     * @param wait how long to wait (ms)
+     */
+    private void wakeAfter(long wait) {
+        long when = System.currentTimeMillis() + wait;
+        if (wakeup != 0 && wakeup <= when) {
+            return;
+        }
+        if (timer == null) {
+            timer = new Timer("ELEVATOR", true);
+        }
+        wakeup = when;
+        timer.schedule(new TimerTask() {
+            public void run() {
+                synchronized (Elevator.this) {
+                    wakeup = 0;
+                    dispatch();
+                }
+            }
+        }, wait);
+    }
+
+}
@@ -0,0 +1,204 @@
+import java.util.*;
+
+/** A free-space manager for a range of disk blocks.
+ * <p>
+ * Free space is kept as a set of maximal free extents in two balanced
+ * trees: one ordered by starting block, used to coalesce neighbours on
+ * free and to search near a given block, and one ordered by length, used
+ * for best-fit.  Allocation and free are O(log n) in the number of free
+ * extents, whatever the size of the disk.
+ * <p>
+ * allocate() places blocks, in order of preference,
+ * <ol>
+ * <li> exactly at <tt>goal</tt> (normally the block after the end of the
+ *      file being extended), so the file stays contiguous,
+ * <li> in the nearest of the free extents close to <tt>near</tt> (normally
+ *      the current head position) that is big enough, which keeps seeks
+ *      short,
+ * <li> in the smallest free extent that is big enough, or
+ * <li> in the largest free extent, if none is big enough.
+ * </ol>
+ *
+ * @see FileSystem
+ */
+public class ExtentAllocator {
+    /** How many extents on each side of <tt>near</tt> are considered. */
+    private static final int NEIGHBOURS = 8;
+
+    /** Free extents: start block to length. */
+    private TreeMap<Integer, Integer> byStart = new TreeMap<Integer, Integer>();
+
+    /** Free extents ordered by length, encoded as (length << 32) | start. */
+    private TreeSet<Long> bySize = new TreeSet<Long>();
+
+    /** The total number of free blocks. */
+    private long freeBlocks;
+
+    /** Creates an allocator with no free space. */
+    public ExtentAllocator() {
+    } // constructor
+
+    /** Creates an allocator from a bitmap.
+     * @param used the blocks in use.
+     * @param first the first block to manage.
+     * @param end one past the last block to manage.
+     */
+    public ExtentAllocator(BitSet used, int first, int end) {
+        int s = used.nextClearBit(first);
+        while (s < end) {
+            int e = used.nextSetBit(s);
+            if (e < 0 || e > end) {
+                e = end;
+            }
+            insert(s, e - s);
+            s = used.nextClearBit(e);
+        }
+    } // constructor
+
+    /** Returns the number of free blocks.
+     * @return the number of free blocks.
+     */
+    public synchronized long getFreeBlocks() {
+        return freeBlocks;
+    } // getFreeBlocks
+
+    /** Returns the number of free extents, a measure of fragmentation.
+     * @return the number of free extents.
+     */
+    public synchronized int getExtentCount() {
+        return byStart.size();
+    } // getExtentCount
+
+    /** Allocates a run of blocks.
+     * @param goal the block at which allocation should start if it is
+     *      free, or -1.
+     * @param near a block to allocate close to if goal is not free.
+     * @param want the number of blocks wanted.
+     * @param run set to the first block and length of the run allocated,
+     *      which may be shorter than want.
+     * @return false if there is no free space.
+     */
+    public synchronized boolean allocate(int goal, int near, int want,
+            int run[])
+    {
+        if (byStart.isEmpty() || want < 1) {
+            return false;
+        }
+
+        // 1. Exactly at the goal
+        if (goal >= 0) {
+            Map.Entry<Integer, Integer> e = byStart.floorEntry(goal);
+            if (e != null && goal < e.getKey() + e.getValue()) {
+                int n = Math.min(want, e.getKey() + e.getValue() - goal);
+                take(e.getKey(), e.getValue(), goal, n, run);
+                return true;
+            }
+        }
+
+        // 2. The nearest big-enough extent among the neighbours of near
+        int bestStart = -1;
+        int bestLength = 0;
+        long bestDistance = Long.MAX_VALUE;
+        Map.Entry<Integer, Integer> e = byStart.floorEntry(near);
+        for (int i = 0; e != null && i < NEIGHBOURS; i++) {
+            long d = distance(e.getKey(), e.getValue(), near);
+            if (e.getValue() >= want && d < bestDistance) {
+                bestStart = e.getKey();
+                bestLength = e.getValue();
+                bestDistance = d;
+            }
+            e = byStart.lowerEntry(e.getKey());
+        }
+        e = byStart.higherEntry(near);
+        for (int i = 0; e != null && i < NEIGHBOURS; i++) {
+            long d = distance(e.getKey(), e.getValue(), near);
+            if (e.getValue() >= want && d < bestDistance) {
+                bestStart = e.getKey();
+                bestLength = e.getValue();
+                bestDistance = d;
+            }
+            e = byStart.higherEntry(e.getKey());
+        }
+        if (bestStart >= 0) {
+            int at = Math.max(bestStart,
+                Math.min(near, bestStart + bestLength - want));
+            take(bestStart, bestLength, at, want, run);
+            return true;
+        }
+
+        // 3. Best fit, or 4. the largest extent
+        Long key = bySize.ceiling((long) want << 32);
+        if (key == null) {
+            key = bySize.last();
+        }
+        int start = (int) (key & 0xffffffffL);
+        int length = (int) (key >>> 32);
+        take(start, length, start, Math.min(want, length), run);
+        return true;
+    } // allocate
+
+    /** Returns a run of blocks to the free pool, merging it with its free
+     * neighbours.
+     * @param start the first block.
+     * @param count the number of blocks.
+     */
+    public synchronized void free(int start, int count) {
+        if (count < 1) {
+            return;
+        }
+        Map.Entry<Integer, Integer> before = byStart.lowerEntry(start);
+        if (before != null && before.getKey() + before.getValue() == start) {
+            remove(before.getKey(), before.getValue());
+            start = before.getKey();
+            count += before.getValue();
+        }
+        Integer afterLength = byStart.get(start + count);
+        if (afterLength != null) {
+            remove(start + count, afterLength);
+            count += afterLength;
+        }
+        insert(start, count);
+    } // free
+
+    /** Distance from a block to the nearest block of an extent. */
+    private static long distance(int start, int length, int near) {
+        if (near < start) {
+            return (long) start - near;
+        }
+        if (near >= start + length) {
+            return (long) near - (start + length - 1);
+        }
+        return 0;
+    } // distance
+
+    /** Allocates part of a free extent, putting the remainders back.
+     * @param start the start of the free extent.
+     * @param length the length of the free extent.
+     * @param at the first block to allocate.
+     * @param n the number of blocks to allocate.
+     * @param run set to (at, n).
+     */
+    private void take(int start, int length, int at, int n, int run[]) {
+        remove(start, length);
+        if (at > start) {
+            insert(start, at - start);
+        }
+        if (at + n < start + length) {
+            insert(at + n, start + length - (at + n));
+        }
+        run[0] = at;
+        run[1] = n;
+    } // take
+
+    private void insert(int start, int length) {
+        byStart.put(start, length);
+        bySize.add(((long) length << 32) | start);
+        freeBlocks += length;
+    } // insert
+
+    private void remove(int start, int length) {
+        byStart.remove(start);
+        bySize.remove(((long) length << 32) | start);
+        freeBlocks -= length;
+    } // remove
+} // ExtentAllocator
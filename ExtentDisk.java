@@ -0,0 +1,324 @@
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+
+/** A Disk with a configurable block size that transfers extents of
+ * contiguous blocks in a single operation.
+ * <p>
+ * Every operation on a plain Disk moves one 512-byte block and costs an
+ * interrupt, a Request, and a trip through the Elevator queue.  An
+ * ExtentDisk has blocks of 4 KB to 64 KB, and beginRead/beginWrite take a
+ * block count, so up to <tt>maxExtent</tt> blocks move per interrupt.
+ * <p>
+ * Seek time is proportional to the distance in bytes, so it matches a
+ * plain Disk of the same capacity, plus a transfer time of a millisecond
+ * per 64 KB.  The fixed cost per operation is the same as a plain Disk.
+ * <p>
+ * Boot only passes the disk size, so the block size and maximum extent
+ * come from the system properties <tt>disk.blockSize</tt> (default 4096)
+ * and <tt>disk.maxExtent</tt> (default 64):
+ * <pre>
+ *    java -Ddisk.blockSize=16384 Boot 10 ExtentDisk 1000 Shell
+ * </pre>
+ * The contents are saved in the DISK file, which must be
+ * DISK_SIZE * blockSize bytes long.
+ *
+ * @see Disk
+ */
+public class ExtentDisk extends Disk {
+    /** The smallest block size allowed. */
+    public static final int MIN_BLOCK_SIZE = 4 * 1024;
+
+    /** The largest block size allowed. */
+    public static final int MAX_BLOCK_SIZE = 64 * 1024;
+
+    /** The size of a block on this disk, in bytes. */
+    public final int blockSize;
+
+    /** The largest number of blocks one operation may transfer. */
+    public final int maxExtent;
+
+    /** The data stored on the disk, one array per block.  A null entry
+     * is a block that has never been written.
+     */
+    private byte blocks[][];
+
+    /** The fill pattern for blocks that have never been written. */
+    private byte junk[];
+
+    /** An indication whether the current I/O operation is a write. */
+    private boolean isWriting;
+
+    /** The number of blocks in the current I/O operation. */
+    private int count;
+
+    /** Memory buffer to/from which the current operation is transferring. */
+    private byte buffer[];
+
+    /** Where in buffer the current operation starts. */
+    private int offset;
+
+    /** Set by beginRead or beginWrite when a request has been submitted. */
+    private boolean requestQueued = false;
+
+    /** A count of bytes transferred, for statistics. */
+    protected long byteCount;
+
+    /** Creates a new ExtentDisk using the parameters from the system
+     * properties.
+     * @param size the total size of this disk, in blocks.
+     */
+    public ExtentDisk(int size) {
+        this(size,
+            Integer.getInteger("disk.blockSize", 4096).intValue(),
+            Integer.getInteger("disk.maxExtent", 64).intValue());
+    } // constructor
+
+    /** Creates a new ExtentDisk.
+     * If a Unix file named DISK exists, the contents are restored from it.
+     * @param size the total size of this disk, in blocks.
+     * @param blockSize the size of a block, a power of two between
+     *      MIN_BLOCK_SIZE and MAX_BLOCK_SIZE.
+     * @param maxExtent the largest number of blocks per operation.
+     */
+    public ExtentDisk(int size, int blockSize, int maxExtent) {
+        super(size, null);
+        if (blockSize < MIN_BLOCK_SIZE || blockSize > MAX_BLOCK_SIZE
+            || (blockSize & (blockSize - 1)) != 0)
+        {
+            throw new DiskException("Bad block size " + blockSize);
+        }
+        if (maxExtent < 1) {
+            throw new DiskException("Bad maximum extent " + maxExtent);
+        }
+        this.blockSize = blockSize;
+        this.maxExtent = maxExtent;
+        blocks = new byte[size][];
+        junk = new byte[blockSize];
+        for (int i = 0; i < blockSize; ) {
+            junk[i++] = 74;
+            junk[i++] = 85;
+            junk[i++] = 78;
+            junk[i++] = 75;
+        }
+
+        File diskName = new File("DISK");
+        if (!diskName.exists()) {
+            System.out.println("Creating new disk");
+            return;
+        }
+        if (diskName.length() != (long) size * blockSize) {
+            throw new DiskException(
+                "File DISK exists but is the wrong size");
+        }
+        try {
+            FileInputStream is = new FileInputStream(diskName);
+            DataInputStream in
+                = new DataInputStream(new BufferedInputStream(is, 1 << 20));
+            for (int i = 0; i < size; i++) {
+                blocks[i] = new byte[blockSize];
+                in.readFully(blocks[i]);
+            }
+            in.close();
+            System.out.println("Restored " + size + " blocks from file DISK");
+        } catch (Exception e) {
+            e.printStackTrace();
+            System.exit(1);
+        }
+    } // constructor
+
+    /** Returns the size of a block on this disk.
+     * @return the block size in bytes.
+     */
+    public int getBlockSize() {
+        return blockSize;
+    } // getBlockSize
+
+    /** Returns the largest number of blocks one operation may transfer.
+     * @return the maximum extent.
+     */
+    public int getMaxExtent() {
+        return maxExtent;
+    } // getMaxExtent
+
+    /** Starts a new read operation on a single block.
+     * @param blockNumber The block number to read from.
+     * @param buffer A data area at least blockSize bytes long.
+     */
+    public void beginRead(int blockNumber, byte buffer[]) {
+        beginRead(blockNumber, 1, buffer, 0);
+    } // beginRead
+
+    /** Starts a new write operation on a single block.
+     * @param blockNumber The block number to write to.
+     * @param buffer A data area at least blockSize bytes long.
+     */
+    public void beginWrite(int blockNumber, byte buffer[]) {
+        beginWrite(blockNumber, 1, buffer, 0);
+    } // beginWrite
+
+    /** Starts a new read operation on an extent.
+     * @param blockNumber The first block to read.
+     * @param count The number of blocks to read, at most maxExtent.
+     * @param buffer A data area to hold the data read.
+     * @param offset Where the data should start in buffer.
+     */
+    public synchronized void beginRead(int blockNumber, int count,
+            byte buffer[], int offset)
+    {
+        begin(false, blockNumber, count, buffer, offset);
+    } // beginRead
+
+    /** Starts a new write operation on an extent.
+     * @param blockNumber The first block to write.
+     * @param count The number of blocks to write, at most maxExtent.
+     * @param buffer A data area containing the data to be written.
+     * @param offset Where the data starts in buffer.
+     */
+    public synchronized void beginWrite(int blockNumber, int count,
+            byte buffer[], int offset)
+    {
+        begin(true, blockNumber, count, buffer, offset);
+    } // beginWrite
+
+    /** Checks and records a new operation.  The caller must hold the lock. */
+    private void begin(boolean isWriting, int blockNumber, int count,
+            byte buffer[], int offset)
+    {
+        String what = isWriting ? "write" : "read";
+        if (
+                blockNumber < 0
+                || count < 1
+                || count > maxExtent
+                || blockNumber + count > DISK_SIZE
+                || buffer == null
+                || offset < 0
+                || offset + (long) count * blockSize > buffer.length)
+        {
+            throw new DiskException("Illegal disk " + what + " request: "
+                        + " block number " + blockNumber
+                        + " count " + count
+                        + " buffer " + buffer);
+        }
+
+        if (busy) {
+            throw new DiskException("Disk " + what + " attempted "
+                        + " while the disk was still busy.");
+        }
+
+        this.isWriting = isWriting;
+        this.count = count;
+        this.buffer = buffer;
+        this.offset = offset;
+        targetBlock = blockNumber;
+        requestQueued = true;
+
+        notify();
+    } // begin
+
+    /** Sleeps for a while to simulate seeking.  The distance is measured
+     * in 512-byte units so big blocks do not make seeks cheaper.
+     * @param targetBlock the block number to which we have to seek.
+     */
+    protected void delay(int targetBlock) {
+        long distance = (long) seek(targetBlock) * (blockSize / BLOCK_SIZE);
+        long sleepTime = 10 + distance / 5
+            + ((long) count * blockSize >> 16);
+        try {
+            Thread.sleep(sleepTime);
+        } catch (Exception e) {
+            e.printStackTrace();
+        }
+    } // delay
+
+    /** Saves the contents of this Disk to the DISK file.
+     * @return the number of blocks written.
+     */
+    public int checkpoint() {
+        try {
+            FileChannel ch = new FileOutputStream("DISK").getChannel();
+            ByteBuffer zero = ByteBuffer.wrap(new byte[blockSize]);
+            ByteBuffer fill = ByteBuffer.wrap(junk);
+            for (int i = 0; i < DISK_SIZE; i++) {
+                ByteBuffer bb;
+                if (blocks[i] != null) {
+                    bb = ByteBuffer.wrap(blocks[i]);
+                } else {
+                    bb = (i == 0) ? zero : fill;
+                    bb.clear();
+                }
+                while (bb.hasRemaining()) {
+                    ch.write(bb);
+                }
+            }
+            ch.close();
+        } catch (Exception e) {
+            e.printStackTrace();
+            System.exit(1);
+        }
+        return DISK_SIZE;
+    } // checkpoint
+
+    /** Saves the contents of this Disk and prints some statistics. */
+    public void flush() {
+        System.out.println("Saving contents to DISK file...");
+        checkpoint();
+        System.out.println(readCount + " read operations and "
+            + writeCount + " write operations performed");
+        System.out.println(byteCount + " bytes transferred in "
+            + blockSize + "-byte blocks");
+    } // flush
+
+    /** The disk controller loop.  Waits for a request, performs it, and
+     * interrupts the CPU.
+     * This method should <em>not</em> be called directly.
+     */
+    public void run() {
+        for (;;) {
+            synchronized (this) {
+                while (!requestQueued) {
+                    try {
+                        wait();
+                    } catch (Exception e) {
+                        e.printStackTrace();
+                    }
+                }
+                requestQueued = false;
+                busy = true;
+            }
+
+            // Pause to do the operation
+            int first = targetBlock;
+            delay(first);
+
+            // Move the data.
+            for (int i = 0; i < count; i++) {
+                int b = first + i;
+                int pos = offset + i * blockSize;
+                if (isWriting) {
+                    if (blocks[b] == null) {
+                        blocks[b] = new byte[blockSize];
+                    }
+                    System.arraycopy(buffer, pos, blocks[b], 0, blockSize);
+                } else if (blocks[b] != null) {
+                    System.arraycopy(blocks[b], 0, buffer, pos, blockSize);
+                } else if (b == 0) {
+                    java.util.Arrays.fill(buffer, pos, pos + blockSize,
+                                          (byte) 0);
+                } else {
+                    System.arraycopy(junk, 0, buffer, pos, blockSize);
+                }
+            }
+            if (isWriting) {
+                writeCount++;
+            } else {
+                readCount++;
+            }
+            byteCount += (long) count * blockSize;
+
+            // The head ends up at the last block of the extent
+            targetBlock = first + count - 1;
+            finishOperation();
+        }
+    } // run
+} // ExtentDisk
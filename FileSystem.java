@@ -0,0 +1,737 @@
+import java.nio.*;
+import java.util.*;
+
+/** A simple block-based file system for the MiniKernel.
+ * <p>
+ * The file system lives on a BlockDevice (normally the block cache) and
+ * uses the whole device.  The layout is
+ * <ul>
+ * <li> block 0: the superblock, which records the layout below,
+ * <li> the free-block bitmap, one bit per block, set if the block is in
+ *      use,
+ * <li> the inode table, INODE_SIZE bytes per inode, and
+ * <li> data blocks.
+ * </ul>
+ * An inode holds a type, a size in bytes, and up to MAX_EXTENTS extents
+ * (a starting block and a block count).  Free space is managed by an
+ * ExtentAllocator built from the bitmap at mount time.  Blocks are
+ * allocated next to the end of the file's last extent whenever possible,
+ * so files tend to be contiguous and are read and written with extent
+ * operations; the first blocks of a file are placed near the disk head.
+ * <p>
+ * A directory is a file of DIRENT_SIZE-byte entries, each an inode number
+ * and a name of up to NAME_LENGTH bytes.  Inode 1 is the root directory.
+ * Paths are names separated by slashes, always relative to the root.
+ * <p>
+ * The superblock, bitmap and inode table are pinned in the block cache
+ * (as much of them as fits in half the cache).  All metadata updates are
+ * written through immediately.  The file system is a monitor: one
+ * operation runs at a time.  If the device is journaled, each open and
+ * write is one atomic group in the journal, so a crash never leaves it
+ * half done.
+ * <p>
+ * A new file system is only made when asked for (by the Mkfs program).
+ * Mounting a device that holds none, or one made for a device of another
+ * size (as happens when a layer that takes blocks for itself, such as the
+ * journal or checksums, is turned on or off), fails rather than
+ * overwriting what is there; probe() says which.  A file system can also
+ * be mounted read-only, which is how snapshots of the disk are looked at.
+ *
+ * @see Kernel
+ */
+public class FileSystem {
+    /** The first word of the superblock ("FS01"). */
+    public static final int MAGIC = 0x46533031;
+
+    /** The size of an inode in bytes. */
+    public static final int INODE_SIZE = 128;
+
+    /** The most extents one file may have. */
+    public static final int MAX_EXTENTS = 14;
+
+    /** The size of a directory entry in bytes. */
+    public static final int DIRENT_SIZE = 32;
+
+    /** The longest file name, in bytes. */
+    public static final int NAME_LENGTH = DIRENT_SIZE - 4;
+
+    /** The inode number of the root directory. */
+    public static final int ROOT = 1;
+
+    /** Inode type of an unused inode. */
+    public static final int TYPE_FREE = 0;
+
+    /** Inode type of a regular file. */
+    public static final int TYPE_FILE = 1;
+
+    /** Inode type of a directory. */
+    public static final int TYPE_DIRECTORY = 2;
+
+    /** An inode in memory. */
+    static class Inode {
+        int inum;
+        int type;
+        long size;
+        int nExtents;
+        int start[] = new int[MAX_EXTENTS];
+        int count[] = new int[MAX_EXTENTS];
+
+        /** @return the number of blocks allocated to this inode */
+        int blocks() {
+            int n = 0;
+            for (int i = 0; i < nExtents; i++) {
+                n += count[i];
+            }
+            return n;
+        }
+    } // Inode
+
+    /** An open file. */
+    static class OpenFile {
+        Inode inode;
+        long offset;
+
+        OpenFile(Inode inode) {
+            this.inode = inode;
+        }
+    } // OpenFile
+
+    /** The device holding the file system. */
+    private BlockDevice dev;
+
+    /** The block cache, used to pin metadata, or null. */
+    private BufferPool cache;
+
+    /** The journal under dev, which makes each call atomic, or null. */
+    private Journal journal;
+
+    /** Whether the file system was mounted read-only. */
+    private boolean readOnly;
+
+    private int blockSize;
+    private int blockCount;
+    private int inodeCount;
+    private int inodeStart;
+    private int inodeBlocks;
+    private int bitmapStart;
+    private int bitmapBlocks;
+    private int dataStart;
+
+    /** In-memory copy of the free-block bitmap. */
+    private BitSet used;
+
+    /** Index of the free extents in the data area. */
+    private ExtentAllocator allocator;
+
+    /** The disk, consulted for the position of its head, or null. */
+    private Disk disk;
+
+    /** Inodes read so far, by number. */
+    private HashMap<Integer, Inode> inodes = new HashMap<Integer, Inode>();
+
+    /** Open files, by file descriptor. */
+    private HashMap<Integer, OpenFile> openFiles
+        = new HashMap<Integer, OpenFile>();
+
+    /** Source of file descriptors. */
+    private int nextFd = 0;
+
+    /** Mounts the file system on a device, or makes a new one.
+     * @param dev the device.
+     * @param cache the block cache holding dev's blocks, or null.
+     * @param disk the disk under dev, used only to find the head, or null.
+     * @param journal the journal under dev, or null.
+     * @param create true to make a new, empty file system on the device,
+     * discarding whatever it holds.
+     * @throws IllegalStateException if create is false and the device
+     * holds no file system, or if create is true and the device is too
+     * small for one.
+     */
+    public FileSystem(BlockDevice dev, BufferPool cache, Disk disk,
+                      Journal journal, boolean create)
+    {
+        this.dev = dev;
+        this.cache = cache;
+        this.disk = disk;
+        this.journal = journal;
+        blockSize = dev.getBlockSize();
+        if (!create && !loadSuperblock()) {
+            throw new IllegalStateException("no file system on device");
+        }
+        if (create) {
+            begin();
+            try {
+                format();
+            } finally {
+                end();
+            }
+        }
+        allocator = new ExtentAllocator(used, dataStart, blockCount);
+        pinMetadata();
+    } // constructor
+
+    /** Mounts the file system on a device read-only.  Opening a file that
+     * does not exist with OPEN_CREATE, OPEN_TRUNCATE, and write all fail
+     * with ERROR_BAD_ARGUMENT.
+     * @param dev the device.
+     * @throws IllegalStateException if the device holds no file system.
+     */
+    public FileSystem(BlockDevice dev) {
+        this.dev = dev;
+        readOnly = true;
+        blockSize = dev.getBlockSize();
+        if (!loadSuperblock()) {
+            throw new IllegalStateException("no file system on device");
+        }
+    } // constructor
+
+    /** Checks whether a device holds a file system that fits it.
+     * @param dev the device.
+     * @return zero if it does, Kernel.ERROR_NO_FILE_SYSTEM if it holds
+     * none, or Kernel.ERROR_WRONG_FILE_SYSTEM if it holds one made for a
+     * device of a different size.
+     */
+    public static int probe(BlockDevice dev) {
+        byte block[] = new byte[dev.getBlockSize()];
+        int rc = dev.read(0, block);
+        if (rc < 0) {
+            return rc;
+        }
+        ByteBuffer sb = ByteBuffer.wrap(block);
+        if (sb.getInt() != MAGIC || sb.getInt() != dev.getBlockSize()) {
+            return Kernel.ERROR_NO_FILE_SYSTEM;
+        }
+        if (sb.getInt() != dev.getBlockCount()) {
+            return Kernel.ERROR_WRONG_FILE_SYSTEM;
+        }
+        return 0;
+    } // probe
+
+    /** Reads the superblock and the bitmap.
+     * @return false if the device does not hold a file system.
+     */
+    private boolean loadSuperblock() {
+        byte block[] = new byte[blockSize];
+        dev.read(0, block);
+        ByteBuffer sb = ByteBuffer.wrap(block);
+        if (sb.getInt() != MAGIC
+            || sb.getInt() != blockSize
+            || sb.getInt() != dev.getBlockCount())
+        {
+            return false;
+        }
+        blockCount = dev.getBlockCount();
+        inodeCount = sb.getInt();
+        inodeStart = sb.getInt();
+        inodeBlocks = sb.getInt();
+        bitmapStart = sb.getInt();
+        bitmapBlocks = sb.getInt();
+        dataStart = sb.getInt();
+        loadBitmap();
+        return true;
+    } // loadSuperblock
+
+    /////////////////////////////////////////// Layout
+
+    /** Creates an empty file system on the device. */
+    private void format() {
+        blockCount = dev.getBlockCount();
+        int perBlock = blockSize / INODE_SIZE;
+        inodeCount = Math.max(16, blockCount / 8);
+        inodeBlocks = (inodeCount + perBlock - 1) / perBlock;
+        inodeCount = inodeBlocks * perBlock;
+        bitmapStart = 1;
+        bitmapBlocks = (blockCount + blockSize * 8 - 1) / (blockSize * 8);
+        inodeStart = bitmapStart + bitmapBlocks;
+        dataStart = inodeStart + inodeBlocks;
+        if (dataStart >= blockCount) {
+            throw new IllegalStateException("disk too small for a file system");
+        }
+
+        byte zero[] = new byte[blockSize];
+        for (int i = 0; i < inodeBlocks; i++) {
+            dev.write(inodeStart + i, zero);
+        }
+        used = new BitSet(blockCount);
+        used.set(0, dataStart);
+        writeBitmap(0, blockCount);
+
+        Inode root = new Inode();
+        root.inum = ROOT;
+        root.type = TYPE_DIRECTORY;
+        writeInode(root);
+        inodes.put(ROOT, root);
+
+        byte block[] = new byte[blockSize];
+        ByteBuffer sb = ByteBuffer.wrap(block);
+        sb.putInt(MAGIC).putInt(blockSize).putInt(blockCount)
+            .putInt(inodeCount).putInt(inodeStart).putInt(inodeBlocks)
+            .putInt(bitmapStart).putInt(bitmapBlocks).putInt(dataStart);
+        dev.write(0, block);
+    } // format
+
+    /** Pins the superblock, bitmap and inode table in the cache, as far as
+     * half the cache allows.
+     */
+    private void pinMetadata() {
+        if (cache == null) {
+            return;
+        }
+        int budget = Math.max(1, cache.getCapacity() / 2);
+        for (int b = 0; b < dataStart && b < budget; b++) {
+            cache.pin(b);
+        }
+    } // pinMetadata
+
+    /** Reads the free-block bitmap into memory. */
+    private void loadBitmap() {
+        used = new BitSet(blockCount);
+        byte block[] = new byte[blockSize];
+        int bitsPerBlock = blockSize * 8;
+        for (int i = 0; i < bitmapBlocks; i++) {
+            dev.read(bitmapStart + i, block);
+            for (int j = 0; j < bitsPerBlock; j++) {
+                int b = i * bitsPerBlock + j;
+                if (b >= blockCount) {
+                    break;
+                }
+                if ((block[j >> 3] & (1 << (j & 7))) != 0) {
+                    used.set(b);
+                }
+            }
+        }
+    } // loadBitmap
+
+    /** Writes the bitmap blocks covering a range of blocks.
+     * @param from the first block whose bit changed.
+     * @param to one past the last block whose bit changed.
+     */
+    private void writeBitmap(int from, int to) {
+        int bitsPerBlock = blockSize * 8;
+        byte block[] = new byte[blockSize];
+        for (int i = from / bitsPerBlock; i <= (to - 1) / bitsPerBlock; i++) {
+            Arrays.fill(block, (byte) 0);
+            for (int j = 0; j < bitsPerBlock; j++) {
+                int b = i * bitsPerBlock + j;
+                if (b >= blockCount) {
+                    break;
+                }
+                if (used.get(b)) {
+                    block[j >> 3] |= (byte) (1 << (j & 7));
+                }
+            }
+            dev.write(bitmapStart + i, block);
+        }
+    } // writeBitmap
+
+    /////////////////////////////////////////// Inodes
+
+    /** Returns an inode, reading it if necessary.
+     * @param inum the inode number.
+     * @return the inode.
+     */
+    private Inode getInode(int inum) {
+        Inode ino = inodes.get(inum);
+        if (ino != null) {
+            return ino;
+        }
+        int perBlock = blockSize / INODE_SIZE;
+        byte block[] = new byte[blockSize];
+        dev.read(inodeStart + inum / perBlock, block);
+        ByteBuffer bb = ByteBuffer.wrap(block,
+            (inum % perBlock) * INODE_SIZE, INODE_SIZE);
+        ino = new Inode();
+        ino.inum = inum;
+        ino.type = bb.getInt();
+        ino.nExtents = bb.getInt();
+        ino.size = bb.getLong();
+        for (int i = 0; i < MAX_EXTENTS; i++) {
+            ino.start[i] = bb.getInt();
+            ino.count[i] = bb.getInt();
+        }
+        inodes.put(inum, ino);
+        return ino;
+    } // getInode
+
+    /** Writes an inode to the inode table.
+     * @param ino the inode.
+     */
+    private void writeInode(Inode ino) {
+        int perBlock = blockSize / INODE_SIZE;
+        int b = inodeStart + ino.inum / perBlock;
+        byte block[] = new byte[blockSize];
+        dev.read(b, block);
+        ByteBuffer bb = ByteBuffer.wrap(block,
+            (ino.inum % perBlock) * INODE_SIZE, INODE_SIZE);
+        bb.putInt(ino.type).putInt(ino.nExtents).putLong(ino.size);
+        for (int i = 0; i < MAX_EXTENTS; i++) {
+            bb.putInt(ino.start[i]).putInt(ino.count[i]);
+        }
+        dev.write(b, block);
+    } // writeInode
+
+    /** Finds an unused inode and gives it a type.
+     * @param type the type of the new inode.
+     * @return the inode, or null if there are none left.
+     */
+    private Inode allocInode(int type) {
+        for (int inum = ROOT + 1; inum < inodeCount; inum++) {
+            Inode ino = getInode(inum);
+            if (ino.type == TYPE_FREE) {
+                ino.type = type;
+                ino.size = 0;
+                ino.nExtents = 0;
+                writeInode(ino);
+                return ino;
+            }
+        }
+        return null;
+    } // allocInode
+
+    /////////////////////////////////////////// Block allocation
+
+    /** Allocates a run of free blocks and records it in the bitmap.
+     * @param goal the block to start at if it is free, or -1.
+     * @param want the number of blocks wanted.
+     * @param run set to the start and length of the run allocated.
+     * @return false if the disk is full.
+     */
+    private boolean allocRun(int goal, int want, int run[]) {
+        int near = disk == null ? dataStart : disk.getCurrentBlock();
+        if (!allocator.allocate(goal, near, want, run)) {
+            return false;
+        }
+        used.set(run[0], run[0] + run[1]);
+        writeBitmap(run[0], run[0] + run[1]);
+        return true;
+    } // allocRun
+
+    /** Frees a run of blocks and records it in the bitmap.
+     * @param start the first block.
+     * @param count the number of blocks.
+     */
+    private void freeRun(int start, int count) {
+        allocator.free(start, count);
+        used.clear(start, start + count);
+        writeBitmap(start, start + count);
+    } // freeRun
+
+    /** Makes sure an inode has at least a given number of blocks.
+     * New blocks extend the last extent if the blocks after it are free.
+     * @param ino the inode.
+     * @param blocks the number of blocks needed.
+     * @return zero or ERROR_NO_SPACE.
+     */
+    private int ensureBlocks(Inode ino, int blocks) {
+        int have = ino.blocks();
+        int run[] = new int[2];
+        while (have < blocks) {
+            int last = ino.nExtents - 1;
+            int goal = last < 0 ? -1 : ino.start[last] + ino.count[last];
+            if (!allocRun(goal, blocks - have, run)) {
+                writeInode(ino);
+                return Kernel.ERROR_NO_SPACE;
+            }
+            if (last >= 0 && run[0] == goal) {
+                ino.count[last] += run[1];
+            } else if (ino.nExtents < MAX_EXTENTS) {
+                ino.start[ino.nExtents] = run[0];
+                ino.count[ino.nExtents] = run[1];
+                ino.nExtents++;
+            } else {
+                freeRun(run[0], run[1]);
+                writeInode(ino);
+                return Kernel.ERROR_NO_SPACE;
+            }
+            have += run[1];
+        }
+        writeInode(ino);
+        return 0;
+    } // ensureBlocks
+
+    /** Frees all the blocks of an inode and sets its size to zero.
+     * @param ino the inode.
+     */
+    private void truncate(Inode ino) {
+        for (int i = 0; i < ino.nExtents; i++) {
+            freeRun(ino.start[i], ino.count[i]);
+        }
+        ino.nExtents = 0;
+        ino.size = 0;
+        writeInode(ino);
+    } // truncate
+
+    /** Finds the physical block holding a logical block of a file.
+     * @param ino the inode.
+     * @param logical the logical block number.
+     * @param run set to the physical block and the number of blocks of the
+     *      same extent that follow it (including itself).
+     */
+    private void map(Inode ino, int logical, int run[]) {
+        for (int i = 0; i < ino.nExtents; i++) {
+            if (logical < ino.count[i]) {
+                run[0] = ino.start[i] + logical;
+                run[1] = ino.count[i] - logical;
+                return;
+            }
+            logical -= ino.count[i];
+        }
+        throw new IllegalStateException("block past end of inode "
+            + ino.inum);
+    } // map
+
+    /////////////////////////////////////////// Data transfer
+
+    /** Moves bytes between a file and a buffer.  The blocks must already
+     * be allocated.  Whole blocks are moved with extent operations;
+     * partial blocks are read, modified and written.
+     * @param ino the file.
+     * @param pos the position in the file.
+     * @param buf the buffer.
+     * @param off the position in the buffer.
+     * @param len the number of bytes.
+     * @param write true to write to the file, false to read from it.
+     */
+    private void transfer(Inode ino, long pos, byte buf[], int off,
+            int len, boolean write)
+    {
+        int run[] = new int[2];
+        while (len > 0) {
+            int logical = (int) (pos / blockSize);
+            int inBlock = (int) (pos % blockSize);
+            map(ino, logical, run);
+            int n;
+            if (inBlock == 0 && len >= blockSize) {
+                int blocks = Math.min(run[1], len / blockSize);
+                n = blocks * blockSize;
+                byte tmp[] = new byte[n];
+                if (write) {
+                    System.arraycopy(buf, off, tmp, 0, n);
+                    dev.writeExtent(run[0], blocks, tmp);
+                } else {
+                    dev.readExtent(run[0], blocks, tmp);
+                    System.arraycopy(tmp, 0, buf, off, n);
+                }
+            } else {
+                n = Math.min(blockSize - inBlock, len);
+                byte tmp[] = new byte[blockSize];
+                dev.read(run[0], tmp);
+                if (write) {
+                    System.arraycopy(buf, off, tmp, inBlock, n);
+                    dev.write(run[0], tmp);
+                } else {
+                    System.arraycopy(tmp, inBlock, buf, off, n);
+                }
+            }
+            pos += n;
+            off += n;
+            len -= n;
+        }
+    } // transfer
+
+    /** Writes bytes to a file, growing it if necessary.
+     * @return the number of bytes written, or ERROR_NO_SPACE.
+     */
+    private int writeAt(Inode ino, long pos, byte buf[], int off, int len) {
+        long end = pos + len;
+        int rc = ensureBlocks(ino, (int) ((end + blockSize - 1) / blockSize));
+        if (rc < 0) {
+            return rc;
+        }
+        transfer(ino, pos, buf, off, len, true);
+        if (end > ino.size) {
+            ino.size = end;
+            writeInode(ino);
+        }
+        return len;
+    } // writeAt
+
+    /////////////////////////////////////////// Directories
+
+    /** Looks up a name in a directory.
+     * @param dir the directory.
+     * @param name the name.
+     * @return the inode number, or zero if there is no such entry.
+     */
+    private int lookup(Inode dir, byte name[]) {
+        byte entries[] = new byte[(int) dir.size];
+        transfer(dir, 0, entries, 0, entries.length, false);
+        ByteBuffer bb = ByteBuffer.wrap(entries);
+        for (int p = 0; p + DIRENT_SIZE <= entries.length; p += DIRENT_SIZE) {
+            int inum = bb.getInt(p);
+            if (inum != 0 && nameEquals(entries, p + 4, name)) {
+                return inum;
+            }
+        }
+        return 0;
+    } // lookup
+
+    /** Adds an entry to a directory, reusing a free slot if there is one.
+     * @return zero or ERROR_NO_SPACE.
+     */
+    private int addEntry(Inode dir, byte name[], int inum) {
+        byte entries[] = new byte[(int) dir.size];
+        transfer(dir, 0, entries, 0, entries.length, false);
+        ByteBuffer bb = ByteBuffer.wrap(entries);
+        long slot = dir.size;
+        for (int p = 0; p + DIRENT_SIZE <= entries.length; p += DIRENT_SIZE) {
+            if (bb.getInt(p) == 0) {
+                slot = p;
+                break;
+            }
+        }
+        byte entry[] = new byte[DIRENT_SIZE];
+        ByteBuffer.wrap(entry).putInt(inum);
+        System.arraycopy(name, 0, entry, 4, name.length);
+        int rc = writeAt(dir, slot, entry, 0, DIRENT_SIZE);
+        return rc < 0 ? rc : 0;
+    } // addEntry
+
+    /** Compares a name with a zero-padded name in a directory entry. */
+    private static boolean nameEquals(byte entries[], int p, byte name[]) {
+        for (int i = 0; i < NAME_LENGTH; i++) {
+            byte b = i < name.length ? name[i] : 0;
+            if (entries[p + i] != b) {
+                return false;
+            }
+        }
+        return true;
+    } // nameEquals
+
+    /////////////////////////////////////////// System calls
+
+    /** Opens a file.
+     * @param path the path name, components separated by slashes.
+     * @param flags a combination of Kernel.OPEN_CREATE,
+     *      Kernel.OPEN_TRUNCATE and Kernel.OPEN_DIRECTORY.
+     * @return a file descriptor, or ERROR_BAD_ARGUMENT,
+     *      ERROR_NO_SUCH_FILE or ERROR_NO_SPACE.
+     */
+    public synchronized int open(String path, int flags) {
+        begin();
+        try {
+            return openPath(path, flags);
+        } finally {
+            end();
+        }
+    } // open
+
+    private int openPath(String path, int flags) {
+        StringTokenizer st = new StringTokenizer(path, "/");
+        Inode cur = getInode(ROOT);
+        while (st.hasMoreTokens()) {
+            byte name[];
+            try {
+                name = st.nextToken().getBytes("UTF-8");
+            } catch (java.io.UnsupportedEncodingException e) {
+                return Kernel.ERROR_BAD_ARGUMENT;
+            }
+            if (name.length > NAME_LENGTH) {
+                return Kernel.ERROR_BAD_ARGUMENT;
+            }
+            if (cur.type != TYPE_DIRECTORY) {
+                return Kernel.ERROR_NO_SUCH_FILE;
+            }
+            int inum = lookup(cur, name);
+            if (inum == 0) {
+                if ((flags & Kernel.OPEN_CREATE) == 0) {
+                    return Kernel.ERROR_NO_SUCH_FILE;
+                }
+                if (readOnly) {
+                    return Kernel.ERROR_BAD_ARGUMENT;
+                }
+                boolean dir = st.hasMoreTokens()
+                    || (flags & Kernel.OPEN_DIRECTORY) != 0;
+                Inode ino = allocInode(dir ? TYPE_DIRECTORY : TYPE_FILE);
+                if (ino == null) {
+                    return Kernel.ERROR_NO_SPACE;
+                }
+                int rc = addEntry(cur, name, ino.inum);
+                if (rc < 0) {
+                    ino.type = TYPE_FREE;
+                    writeInode(ino);
+                    return rc;
+                }
+                inum = ino.inum;
+            }
+            cur = getInode(inum);
+        }
+        if ((flags & Kernel.OPEN_TRUNCATE) != 0 && readOnly) {
+            return Kernel.ERROR_BAD_ARGUMENT;
+        }
+        if ((flags & Kernel.OPEN_TRUNCATE) != 0 && cur.type == TYPE_FILE) {
+            truncate(cur);
+        }
+        int fd = nextFd++;
+        openFiles.put(fd, new OpenFile(cur));
+        return fd;
+    } // openPath
+
+    /** Reads from an open file at its current offset.
+     * @param fd the file descriptor.
+     * @param buf where to put the data; up to buf.length bytes are read.
+     * @return the number of bytes read (zero at end of file), or
+     *      ERROR_BAD_FD.
+     */
+    public synchronized int read(int fd, byte buf[]) {
+        OpenFile of = openFiles.get(fd);
+        if (of == null) {
+            return Kernel.ERROR_BAD_FD;
+        }
+        long left = of.inode.size - of.offset;
+        int n = (int) Math.max(0, Math.min(buf.length, left));
+        transfer(of.inode, of.offset, buf, 0, n, false);
+        of.offset += n;
+        return n;
+    } // read
+
+    /** Writes to an open file at its current offset.
+     * @param fd the file descriptor.
+     * @param buf the data.
+     * @return the number of bytes written, or ERROR_BAD_FD,
+     *      ERROR_BAD_ARGUMENT (for a directory or a read-only file
+     *      system), or ERROR_NO_SPACE.
+     */
+    public synchronized int write(int fd, byte buf[]) {
+        OpenFile of = openFiles.get(fd);
+        if (of == null) {
+            return Kernel.ERROR_BAD_FD;
+        }
+        if (of.inode.type != TYPE_FILE || readOnly) {
+            return Kernel.ERROR_BAD_ARGUMENT;
+        }
+        int n;
+        begin();
+        try {
+            n = writeAt(of.inode, of.offset, buf, 0, buf.length);
+        } finally {
+            end();
+        }
+        if (n > 0) {
+            of.offset += n;
+        }
+        return n;
+    } // write
+
+    /** Closes an open file.
+     * @param fd the file descriptor.
+     * @return zero or ERROR_BAD_FD.
+     */
+    public synchronized int close(int fd) {
+        return openFiles.remove(fd) == null ? Kernel.ERROR_BAD_FD : 0;
+    } // close
+
+    /** Starts a group of writes that reach the disk all or nothing. */
+    private void begin() {
+        if (journal != null) {
+            journal.begin();
+        }
+    } // begin
+
+    /** Commits the writes since begin(). */
+    private void end() {
+        if (journal != null) {
+            journal.end();
+        }
+    } // end
+} // FileSystem
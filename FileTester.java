@@ -0,0 +1,35 @@
+/**
+ * Tests the file system calls open, read, write and close
+ *
+ * @author <a href="mailto:bart@seamus-laptop">Bart Lantz</a>
+ * @version 1.0
+ */
+public class FileTester {
+    public static void main(String[] args) {
+        String path = args.length > 0 ? args[0] : "/test/file";
+        int blockSize = Library.getDiskBlockSize();
+        byte[] out = new byte[blockSize * 3 + 100];
+        for (int i = 0; i < out.length; i++) {
+            out[i] = (byte) (i * 7);
+        }
+
+        int fd = Library.open(path, Kernel.OPEN_CREATE | Kernel.OPEN_TRUNCATE);
+        if (fd < 0) {
+            Library.output("open: " + Library.errorMessage[-fd] + "\n");
+            return;
+        }
+        int rc = Library.write(fd, out);
+        Library.output("wrote " + rc + " bytes to " + path + "\n");
+        Library.close(fd);
+
+        fd = Library.open(path, 0);
+        byte[] in = new byte[out.length + 10];
+        rc = Library.read(fd, in);
+        Library.close(fd);
+        boolean test = (rc == out.length);
+        for (int i = 0; test && i < out.length; i++) {
+            test = (in[i] == out[i]);
+        }
+        Library.output("read " + rc + " bytes, Test: " + test + "\n");
+    } // main
+} // FileTester
@@ -0,0 +1,92 @@
+/**
+ * FrequencySketch estimates how often each block has been used lately
+ *   a count-min sketch of 4-bit counters, sixteen to a long, so it costs
+ *   about eight bytes per cache frame however many blocks it sees.  Each
+ *   block has four counters, picked by four hashes; an estimate is the
+ *   smallest of them, which can be too high (when other blocks share all
+ *   four) but never too low.
+ *   After ten uses per frame have been recorded, every counter is
+ *   halved, so old popularity fades and the counters stay small.
+ *   Not thread safe; BufferPool calls it with its lock held.
+ *
+ * @see BufferPool
+ */
+public class FrequencySketch {
+    /** Hash seeds, one per counter */
+    private static final long[] SEEDS = {
+        0x9e3779b97f4a7c15L, 0xbf58476d1ce4e5b9L,
+        0x94d049bb133111ebL, 0xd6e8feb86659fd93L
+    };
+    /** Counters, sixteen per long */
+    private long[] table;
+    /** The number of counters, less one (a power of two, less one) */
+    private int mask;
+    /** Uses recorded since the counters were last halved */
+    private int additions;
+    /** How many uses to record before halving the counters */
+    private int sampleSize;
+
+    /**
+     * Creates an empty sketch
+     *
+     * @param capacity the number of frames in the cache it serves
+     */
+    public FrequencySketch(int capacity) {
+        int longs = Integer.highestOneBit(Math.max(1, capacity) - 1) << 1;
+        table = new long[Math.max(1, longs)];
+        mask = table.length * 16 - 1;
+        sampleSize = 10 * Math.max(1, capacity);
+    }
+
+    /**
+     * Records a use of a block
+     *
+     * @param blockNum the block
+     */
+    public void increment(int blockNum) {
+        boolean added = false;
+        for (int i = 0; i < SEEDS.length; i++) {
+            int c = counter(blockNum, i);
+            int shift = (c & 15) << 2;
+            if (((table[c >>> 4] >>> shift) & 15) < 15) {
+                table[c >>> 4] += 1L << shift;
+                added = true;
+            }
+        }
+        if (added && ++additions == sampleSize) {
+            age();
+        }
+    }
+
+    /**
+     * Estimates how many times a block has been used lately
+     *
+     * @param blockNum the block
+     * @return the estimate, from 0 to 15
+     */
+    public int frequency(int blockNum) {
+        int f = 15;
+        for (int i = 0; i < SEEDS.length; i++) {
+            int c = counter(blockNum, i);
+            f = Math.min(f, (int) (table[c >>> 4] >>> ((c & 15) << 2)) & 15);
+        }
+        return f;
+    }
+
+    /** Picks one of a block's counters */
+    private int counter(int blockNum, int i) {
+        long h = (blockNum + 1) * SEEDS[i];
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        return (int) h & mask;
+    }
+
+    /** Halves every counter */
+    private void age() {
+        for (int i = 0; i < table.length; i++) {
+            table[i] = (table[i] >>> 1) & 0x7777777777777777L;
+        }
+        additions /= 2;
+    }
+}
@@ -0,0 +1,180 @@
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.util.*;
+
+/** A Disk that saves its contents incrementally.
+ * <p>
+ * A plain Disk rewrites the whole DISK file when it is flushed, and
+ * nothing is saved until then.  An IncrementalDisk keeps a bitmap with one
+ * bit per block recording which blocks have been written since the last
+ * checkpoint.  A checkpoint writes only those blocks, each run of
+ * contiguous dirty blocks with a single positional write to the DISK file.
+ * <p>
+ * Checkpoints are taken
+ * <ul>
+ * <li> every <tt>disk.checkpointInterval</tt> milliseconds (default 1000,
+ *      zero to disable) by a background thread,
+ * <li> whenever the kernel performs SYSCALL_CHECKPOINT, and
+ * <li> when the disk is flushed at shutdown.
+ * </ul>
+ * A crash therefore loses at most one checkpoint interval of writes, and
+ * the time to shut down is proportional to the number of blocks modified.
+ * <p>
+ * If there is no DISK file, one is created and every block is considered
+ * dirty, so the first checkpoint writes the entire image.
+ *
+ * @see Disk
+ */
+public class IncrementalDisk extends Disk {
+    /** One bit per block, set if the block has changed since the last
+     * checkpoint.  Also used as the lock for itself.
+     */
+    private BitSet dirty;
+
+    /** The open DISK file. */
+    private FileChannel channel;
+
+    /** The most blocks a checkpoint copies and writes at a time. */
+    private static final int MAX_RUN = 1024;
+
+    /** Serializes checkpoints. */
+    private Object checkpointLock = new Object();
+
+    /** A count of checkpoints taken, for statistics. */
+    protected int checkpointCount;
+
+    /** A count of blocks written by checkpoints, for statistics. */
+    protected long checkpointBlocks;
+
+    /** Creates a new IncrementalDisk.
+     * The checkpoint interval is taken from the system property
+     * <tt>disk.checkpointInterval</tt>.
+     * @param size the total size of this disk, in blocks.
+     */
+    public IncrementalDisk(int size) {
+        this(size, Long.getLong("disk.checkpointInterval", 1000).longValue());
+    } // constructor
+
+    /** Creates a new IncrementalDisk.
+     * @param size the total size of this disk, in blocks.
+     * @param interval the time between periodic checkpoints, in
+     *      milliseconds, or zero for no periodic checkpoints.
+     */
+    public IncrementalDisk(int size, long interval) {
+        super(size);
+        dirty = new BitSet(DISK_SIZE);
+        File diskName = new File("DISK");
+        if (!diskName.exists()) {
+            // The superclass has filled in the junk but not saved it.
+            dirty.set(0, DISK_SIZE);
+        }
+        try {
+            RandomAccessFile f = new RandomAccessFile(diskName, "rw");
+            f.setLength((long) DISK_SIZE * BLOCK_SIZE);
+            channel = f.getChannel();
+        } catch (IOException e) {
+            e.printStackTrace();
+            System.exit(1);
+        }
+        if (interval > 0) {
+            startCheckpointer(interval);
+        }
+    } // constructor
+
+    /** Starts a daemon thread that takes a checkpoint periodically.
+     * @param interval the time between checkpoints, in milliseconds.
+     */
+    private void startCheckpointer(final long interval) {
+        Thread t = new Thread("CHECKPOINT") {
+            public void run() {
+                for (;;) {
+                    try {
+                        Thread.sleep(interval);
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                    checkpoint();
+                }
+            }
+        };
+        t.setDaemon(true);
+        t.start();
+    } // startCheckpointer
+
+    /** Stores a block and marks it dirty.
+     * @param blockNumber the block to write.
+     * @param buffer the BLOCK_SIZE bytes to store.
+     */
+    protected void writeData(int blockNumber, byte buffer[]) {
+        // Under the lock, so a checkpoint never copies half a block
+        synchronized (dirty) {
+            super.writeData(blockNumber, buffer);
+            dirty.set(blockNumber);
+        }
+    } // writeData
+
+    /** Writes every block modified since the last checkpoint to the DISK
+     * file and forces it to stable storage.
+     * Each run is copied under the lock writeData takes and the copy is
+     * written, so every block is saved whole.  A block written while the
+     * checkpoint is in progress is marked dirty again, so it will be saved
+     * by the next checkpoint.
+     * @return the number of blocks written.
+     */
+    public int checkpoint() {
+        synchronized (checkpointLock) {
+            BitSet toWrite;
+            synchronized (dirty) {
+                toWrite = (BitSet) dirty.clone();
+                dirty.clear();
+            }
+            int written = 0;
+            try {
+                int start = toWrite.nextSetBit(0);
+                while (start >= 0) {
+                    int end = Math.min(toWrite.nextClearBit(start),
+                                       start + MAX_RUN);
+                    byte run[];
+                    synchronized (dirty) {
+                        run = Arrays.copyOfRange(data, start * BLOCK_SIZE,
+                                                 end * BLOCK_SIZE);
+                    }
+                    ByteBuffer bb = ByteBuffer.wrap(run);
+                    long pos = (long) start * BLOCK_SIZE;
+                    while (bb.hasRemaining()) {
+                        pos += channel.write(bb, pos);
+                    }
+                    written += end - start;
+                    start = toWrite.nextSetBit(end);
+                }
+                if (written > 0) {
+                    channel.force(false);
+                }
+            } catch (IOException e) {
+                e.printStackTrace();
+                System.exit(1);
+            }
+            checkpointCount++;
+            checkpointBlocks += written;
+            return written;
+        }
+    } // checkpoint
+
+    /** Saves the remaining dirty blocks and prints some statistics.
+     * Unlike Disk.flush, this does not rewrite the whole DISK file.
+     */
+    public void flush() {
+        System.out.println("Saving changed blocks to DISK file...");
+        checkpoint();
+        try {
+            channel.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        System.out.println(readCount + " read operations and "
+            + writeCount + " write operations performed");
+        System.out.println(checkpointCount + " checkpoints wrote "
+            + checkpointBlocks + " blocks");
+    } // flush
+} // IncrementalDisk
@@ -0,0 +1,88 @@
+/**
+ * IoLimit holds the token buckets that limit one process's disk I/O
+ *   one bucket of operations (refilled at iops per second) and one of
+ *   bytes (refilled at bytesPerSec per second).  Each bucket holds at
+ *   most one second's worth, so a process that has been quiet can burst
+ *   that much before it is slowed down.
+ *   An operation takes its tokens at once, even if that leaves a bucket
+ *   in debt, and the caller then sleeps until the debt is paid off; so
+ *   an operation bigger than a bucket still goes through, just slowly.
+ *   A rate of zero means no limit.
+ *
+ * @see Kernel
+ */
+public class IoLimit {
+    private long iops;
+    private long bytesPerSec;
+    /** Tokens in each bucket; negative when in debt */
+    private double ops;
+    private double bytes;
+    /** When the buckets were last refilled (ns) */
+    private long last = System.nanoTime();
+    /** How long callers have been made to wait (ms) */
+    private long throttled;
+
+    /**
+     * Creates a pair of full buckets
+     *
+     * @param iops operations per second, or zero for no limit
+     * @param bytesPerSec bytes per second, or zero for no limit
+     */
+    public IoLimit(long iops, long bytesPerSec) {
+        this.iops = iops;
+        this.bytesPerSec = bytesPerSec;
+        ops = iops;
+        bytes = bytesPerSec;
+    }
+
+    /** @return the operation rate, or zero if unlimited */
+    public long getIops() {
+        return iops;
+    }
+
+    /** @return the byte rate, or zero if unlimited */
+    public long getBytesPerSec() {
+        return bytesPerSec;
+    }
+
+    /** @return how long callers have been made to wait in total (ms) */
+    public synchronized long getThrottled() {
+        return throttled;
+    }
+
+    /**
+     * Takes the tokens for one operation, waiting if the process is over
+     * its limits
+     *
+     * @param count the number of bytes the operation transfers
+     */
+    public void charge(int count) {
+        long wait;
+        synchronized (this) {
+            long now = System.nanoTime();
+            double seconds = (now - last) / 1e9;
+            last = now;
+            double wait1 = 0;
+            double wait2 = 0;
+            if (iops > 0) {
+                ops = Math.min(iops, ops + seconds * iops) - 1;
+                wait1 = -ops / iops;
+            }
+            if (bytesPerSec > 0) {
+                bytes = Math.min(bytesPerSec, bytes + seconds * bytesPerSec)
+                    - count;
+                wait2 = -bytes / bytesPerSec;
+            }
+            wait = (long) Math.ceil(Math.max(wait1, wait2) * 1000);
+            if (wait <= 0) {
+                return;
+            }
+            throttled += wait;
+        }
+        try {
+            Thread.sleep(wait);
+        } catch (InterruptedException e) {
+            e.printStackTrace();
+        }
+    }
+}
@@ -0,0 +1,37 @@
+/**
+ * Runs a program in an I/O priority class:
+ * <pre>
+ *    Ionice realtime|best-effort|idle program [args...]
+ * </pre>
+ * The program's disk requests, and those of any programs it starts, are
+ * scheduled in that class.  For example, <tt>Ionice idle DiskTester</tt>
+ * exercises the disk without slowing down other programs.
+ */
+public class Ionice {
+    public static void main(String[] args) {
+        String[] classes = { "realtime", "best-effort", "idle" };
+        int priority = -1;
+        if (args.length >= 2) {
+            for (int i = 0; i < classes.length; i++) {
+                if (classes[i].equals(args[0])) {
+                    priority = i;
+                }
+            }
+        }
+        if (priority < 0) {
+            Library.output(
+                "usage: Ionice realtime|best-effort|idle program [args...]\n");
+            return;
+        }
+        String[] progArgs = new String[args.length - 2];
+        System.arraycopy(args, 2, progArgs, 0, progArgs.length);
+        Library.setIoPriority(priority);
+        int rc = Library.exec(args[1], progArgs);
+        if (rc >= 0) {
+            rc = Library.join(rc);
+        }
+        if (rc < 0) {
+            Library.output("Ionice: " + Library.errorMessage[-rc] + "\n");
+        }
+    } // main
+} // Ionice
@@ -0,0 +1,570 @@
+import java.nio.*;
+import java.util.*;
+import java.util.zip.CRC32;
+
+/** A write-ahead journal between the block cache and the Elevator.
+ * <p>
+ * The last <tt>logBlocks</tt> blocks of the device below are set aside as
+ * a circular log; the rest are the "home" locations that callers see.
+ * A write is not sent to its home location.  Instead it is appended to
+ * the log as part of a transaction:
+ * <pre>
+ *    descriptor (seq, block numbers) + data blocks ... + commit (seq, CRC)
+ * </pre>
+ * all written with one sequential extent operation.  Once the commit
+ * block is on disk the write is durable, and the caller returns.
+ * <p>
+ * <b>Group commit.</b>  Writers that arrive while a transaction is being
+ * written join the next one.  The first writer to find no commit in
+ * progress becomes the leader and keeps committing batches until no one
+ * is waiting, so many small writes from many processes turn into a few
+ * long sequential log appends.
+ * <p>
+ * <b>Atomic groups.</b>  Between begin() and end(), a thread's writes are
+ * held back and committed together at end(), so they reach the disk all
+ * or nothing.  The file system wraps each system call this way.  A group
+ * too big for half the log is split across transactions.
+ * <p>
+ * <b>Checkpoints.</b>  Committed blocks are kept in memory until a
+ * checkpoint writes them to their home locations, in block order, and
+ * advances the head of the log.  This happens when the log is about to
+ * fill, on SYSCALL_CHECKPOINT, and on shutdown.
+ * <p>
+ * <b>Replay.</b>  replay() is called by the kernel at power on.  It reads
+ * the log from its head and applies every transaction whose commit block
+ * is present and whose CRC matches, stopping at the first that is not.
+ * The CRC covers the seq and every block number as well as the data, so
+ * a damaged descriptor cannot send good data to the wrong home block.
+ * <p>
+ * Reads see the latest data, whether it is in an open group, waiting to
+ * be committed, or committed but not yet checkpointed.
+ *
+ * @see Kernel
+ * @see BlockDevice
+ */
+public class Journal implements BlockDevice {
+    /** Magic number of the journal superblock ("JRNL"). */
+    private static final int SUPER_MAGIC = 0x4a524e4c;
+
+    /** Magic number of a descriptor block ("JDES"). */
+    private static final int DESCRIPTOR_MAGIC = 0x4a444553;
+
+    /** Magic number of a commit block ("JCMT"). */
+    private static final int COMMIT_MAGIC = 0x4a434d54;
+
+    /** The size of a descriptor's header: magic, seq, count, more. */
+    private static final int DESCRIPTOR_HEADER = 20;
+
+    private BlockDevice lower;
+    private int blockSize;
+
+    /** The number of blocks callers can use. */
+    private int homeBlocks;
+
+    /** The journal superblock; the log area follows it. */
+    private int logStart;
+
+    /** The number of blocks in the log area. */
+    private int capacity;
+
+    /** The number of block numbers that fit in one descriptor. */
+    private int perDescriptor;
+
+    /** Log positions (counting from zero, never wrapping) of the oldest
+     * live transaction and of the next block to be written.
+     */
+    private long head;
+    private long tail;
+
+    /** Sequence numbers of the transaction at head and of the next one. */
+    private long headSeq;
+    private long seq;
+
+    /** Serializes log appends and checkpoints. */
+    private Object logLock = new Object();
+
+    /** Writes waiting for the next commit. */
+    private LinkedHashMap<Integer, byte[]> batch
+        = new LinkedHashMap<Integer, byte[]>();
+
+    /** Writes being committed by the leader, or null. */
+    private LinkedHashMap<Integer, byte[]> committing;
+
+    /** Committed writes not yet written to their home locations. */
+    private HashMap<Integer, byte[]> pending = new HashMap<Integer, byte[]>();
+
+    /** The number of the batch currently accepting writes. */
+    private long batchTicket = 1;
+
+    /** The number of the last batch that has been committed. */
+    private long committedTicket = 0;
+
+    /** Whether some thread is committing batches. */
+    private boolean leaderActive;
+
+    /** Where the result of the batch currently accepting writes goes. */
+    private int[] batchResult = new int[1];
+
+    /** Each thread's open group, or null. */
+    private ThreadLocal<LinkedHashMap<Integer, byte[]>> group
+        = new ThreadLocal<LinkedHashMap<Integer, byte[]>>();
+
+    /** Each thread's begin() nesting depth. */
+    private ThreadLocal<int[]> depth = new ThreadLocal<int[]>() {
+        protected int[] initialValue() {
+            return new int[1];
+        }
+    };
+
+    /** Statistics. */
+    private long commits;
+    private long blocksLogged;
+    private long checkpoints;
+
+    /** Creates a journal on top of a device.
+     * Call replay() before using it.
+     * @param lower the device holding both the home locations and the log.
+     * @param logBlocks the size of the log, including its superblock.
+     */
+    public Journal(BlockDevice lower, int logBlocks) {
+        this.lower = lower;
+        blockSize = lower.getBlockSize();
+        if (logBlocks < 8 || logBlocks >= lower.getBlockCount()) {
+            throw new IllegalArgumentException("bad journal size " + logBlocks);
+        }
+        homeBlocks = lower.getBlockCount() - logBlocks;
+        logStart = homeBlocks;
+        capacity = logBlocks - 1;
+        perDescriptor = (blockSize - DESCRIPTOR_HEADER) / 4;
+    } // constructor
+
+    /////////////////////////////////////////// BlockDevice
+
+    public int read(int blockNum, byte[] data) {
+        synchronized (this) {
+            byte[] v = lookup(blockNum);
+            if (v != null) {
+                System.arraycopy(v, 0, data, 0, blockSize);
+                return 0;
+            }
+        }
+        return lower.read(blockNum, data);
+    }
+
+    public int write(int blockNum, byte[] data) {
+        LinkedHashMap<Integer, byte[]> g = new LinkedHashMap<Integer, byte[]>();
+        g.put(blockNum, Arrays.copyOf(data, blockSize));
+        return submit(g);
+    }
+
+    public int readExtent(int blockNum, int count, byte[] data) {
+        synchronized (this) {
+            boolean journaled = false;
+            for (int i = 0; i < count && !journaled; i++) {
+                journaled = lookup(blockNum + i) != null;
+            }
+            if (!journaled) {
+                blockNum = -1 - blockNum;
+            }
+        }
+        if (blockNum < 0) {
+            return lower.readExtent(-1 - blockNum, count, data);
+        }
+        byte[] block = new byte[blockSize];
+        for (int i = 0; i < count; i++) {
+            int rc = read(blockNum + i, block);
+            if (rc < 0) {
+                return rc;
+            }
+            System.arraycopy(block, 0, data, i * blockSize, blockSize);
+        }
+        return 0;
+    }
+
+    public int writeExtent(int blockNum, int count, byte[] data) {
+        LinkedHashMap<Integer, byte[]> g = new LinkedHashMap<Integer, byte[]>();
+        for (int i = 0; i < count; i++) {
+            g.put(blockNum + i, Arrays.copyOfRange(data, i * blockSize,
+                                                   (i + 1) * blockSize));
+        }
+        return submit(g);
+    }
+
+    public int getBlockSize() {
+        return blockSize;
+    }
+
+    public int getBlockCount() {
+        return homeBlocks;
+    }
+
+    /** Writes every committed block to its home location and empties the
+     * log.
+     * @return zero or an error code
+     */
+    public int flush() {
+        synchronized (logLock) {
+            checkpoint();
+        }
+        return lower.flush();
+    }
+
+    /////////////////////////////////////////// Groups
+
+    /** Starts an atomic group of writes for the calling thread.
+     * Groups nest; only the outermost end() commits.
+     */
+    public void begin() {
+        if (depth.get()[0]++ == 0) {
+            group.set(new LinkedHashMap<Integer, byte[]>());
+        }
+    }
+
+    /** Ends an atomic group, committing its writes and waiting until they
+     * are durable.
+     * @return zero or an error code
+     */
+    public int end() {
+        if (--depth.get()[0] > 0) {
+            return 0;
+        }
+        LinkedHashMap<Integer, byte[]> g = group.get();
+        group.set(null);
+        return g.isEmpty() ? 0 : submit(g);
+    }
+
+    /** Returns the newest copy of a block held by the journal.
+     * Caller must hold the lock.
+     * @return the data, or null if the home location is current
+     */
+    private byte[] lookup(int blockNum) {
+        LinkedHashMap<Integer, byte[]> g = group.get();
+        byte[] v = (g == null) ? null : g.get(blockNum);
+        if (v == null) {
+            v = batch.get(blockNum);
+        }
+        if (v == null && committing != null) {
+            v = committing.get(blockNum);
+        }
+        if (v == null) {
+            v = pending.get(blockNum);
+        }
+        return v;
+    }
+
+    /** Adds writes to the current batch (or to the open group) and, unless
+     * they are part of a group, waits for them to be committed.  If no
+     * one is committing, the caller becomes the leader and commits until
+     * the batch is empty.
+     * @param g the writes; the journal keeps the arrays
+     * @return zero or an error code
+     */
+    private int submit(LinkedHashMap<Integer, byte[]> g) {
+        LinkedHashMap<Integer, byte[]> open = group.get();
+        if (open != null) {
+            synchronized (this) {
+                open.putAll(g);
+            }
+            return 0;
+        }
+        int[] result;
+        synchronized (this) {
+            batch.putAll(g);
+            long ticket = batchTicket;
+            result = batchResult;
+            while (leaderActive && committedTicket < ticket) {
+                try {
+                    wait();
+                } catch (InterruptedException e) {
+                    e.printStackTrace();
+                }
+            }
+            if (committedTicket >= ticket) {
+                return result[0];
+            }
+            // No one is committing, or the leader gave up
+            leaderActive = true;
+        }
+        LinkedHashMap<Integer, byte[]> mine = null;
+        long ticket = 0;
+        int[] rc = null;
+        try {
+            for (;;) {
+                synchronized (this) {
+                    if (batch.isEmpty()) {
+                        return result[0];
+                    }
+                    mine = batch;
+                    ticket = batchTicket++;
+                    rc = batchResult;
+                    committing = mine;
+                    batch = new LinkedHashMap<Integer, byte[]>();
+                    batchResult = new int[1];
+                }
+                rc[0] = commit(mine);
+                synchronized (this) {
+                    committing = null;
+                    committedTicket = ticket;
+                    mine = null;
+                    notifyAll();
+                }
+            }
+        } finally {
+            synchronized (this) {
+                if (mine != null) {
+                    // commit threw; fail the batch rather than strand it
+                    rc[0] = Kernel.ERROR_IO;
+                    committing = null;
+                    committedTicket = ticket;
+                }
+                leaderActive = false;
+                notifyAll();
+            }
+        }
+    }
+
+    /////////////////////////////////////////// The log
+
+    /** Appends a batch to the log as one or more transactions and moves
+     * it to the pending set.
+     * @param mine the batch
+     * @return zero or an error code
+     */
+    private int commit(LinkedHashMap<Integer, byte[]> mine) {
+        synchronized (logLock) {
+            int max = Math.max(1, capacity / 2 - capacity / 2 / perDescriptor - 2);
+            // Make room for the whole batch first, so that a checkpoint
+            // never falls between its pieces unless it is too big for the
+            // log anyway
+            int needed = 0;
+            for (int left = mine.size(); left > 0; left -= max) {
+                int n = Math.min(max, left);
+                needed += (n + perDescriptor - 1) / perDescriptor + n + 1;
+            }
+            if (tail - head + needed > capacity) {
+                checkpoint();
+            }
+            Iterator<Map.Entry<Integer, byte[]>> it = mine.entrySet().iterator();
+            while (it.hasNext()) {
+                int n = Math.min(max, mine.size());
+                int[] blocks = new int[n];
+                byte[][] datas = new byte[n][];
+                int k = 0;
+                while (k < n && it.hasNext()) {
+                    Map.Entry<Integer, byte[]> e = it.next();
+                    blocks[k] = e.getKey();
+                    datas[k] = e.getValue();
+                    k++;
+                }
+                int rc = appendTransaction(blocks, datas, k);
+                if (rc < 0) {
+                    return rc;
+                }
+                // Pending at once, so a checkpoint made for a later piece
+                // writes this one home before moving the head past it
+                synchronized (this) {
+                    for (int i = 0; i < k; i++) {
+                        pending.put(blocks[i], datas[i]);
+                    }
+                }
+            }
+        }
+        return 0;
+    }
+
+    /** Writes one transaction to the log.  Caller must hold logLock.
+     * @param blocks the home block numbers
+     * @param datas their contents
+     * @param n how many of them
+     * @return zero or an error code
+     */
+    private int appendTransaction(int[] blocks, byte[][] datas, int n) {
+        int descriptors = (n + perDescriptor - 1) / perDescriptor;
+        int k = descriptors + n + 1;
+        if (tail - head + k > capacity) {
+            checkpoint();
+        }
+        byte[] rec = new byte[k * blockSize];
+        ByteBuffer bb = ByteBuffer.wrap(rec);
+        CRC32 crc = new CRC32();
+        crcLong(crc, seq);
+        int p = 0;
+        for (int d = 0; d < descriptors; d++) {
+            int first = d * perDescriptor;
+            int count = Math.min(perDescriptor, n - first);
+            bb.position(p * blockSize);
+            bb.putInt(DESCRIPTOR_MAGIC).putLong(seq).putInt(count)
+                .putInt(d < descriptors - 1 ? 1 : 0);
+            for (int i = 0; i < count; i++) {
+                bb.putInt(blocks[first + i]);
+            }
+            p++;
+            for (int i = 0; i < count; i++) {
+                System.arraycopy(datas[first + i], 0, rec, p * blockSize,
+                                 blockSize);
+                crcInt(crc, blocks[first + i]);
+                crc.update(datas[first + i], 0, blockSize);
+                p++;
+            }
+        }
+        bb.position(p * blockSize);
+        bb.putInt(COMMIT_MAGIC).putLong(seq).putLong(crc.getValue()).putInt(n);
+        int rc = writeLog(tail, k, rec);
+        if (rc < 0) {
+            return rc;
+        }
+        tail += k;
+        seq++;
+        commits++;
+        blocksLogged += n;
+        return 0;
+    }
+
+    /** Writes the committed blocks to their home locations, in block
+     * order, and moves the head of the log up to the tail.
+     * Caller must hold logLock.
+     */
+    private void checkpoint() {
+        TreeMap<Integer, byte[]> home;
+        synchronized (this) {
+            home = new TreeMap<Integer, byte[]>(pending);
+        }
+        for (Map.Entry<Integer, byte[]> e : home.entrySet()) {
+            lower.write(e.getKey(), e.getValue());
+        }
+        synchronized (this) {
+            for (Map.Entry<Integer, byte[]> e : home.entrySet()) {
+                if (pending.get(e.getKey()) == e.getValue()) {
+                    pending.remove(e.getKey());
+                }
+            }
+        }
+        head = tail;
+        headSeq = seq;
+        writeSuper();
+        checkpoints++;
+    }
+
+    /** Writes blocks to the log area, wrapping at its end.
+     * @return zero or an error code
+     */
+    private int writeLog(long pos, int count, byte[] data) {
+        int off = (int) (pos % capacity);
+        int first = Math.min(count, capacity - off);
+        if (first == count) {
+            return lower.writeExtent(logStart + 1 + off, count, data);
+        }
+        int rc = lower.writeExtent(logStart + 1 + off, first,
+                                   Arrays.copyOfRange(data, 0,
+                                                      first * blockSize));
+        if (rc < 0) {
+            return rc;
+        }
+        return lower.writeExtent(logStart + 1, count - first,
+                                 Arrays.copyOfRange(data, first * blockSize,
+                                                    count * blockSize));
+    }
+
+    /** Reads one block of the log area. */
+    private byte[] readLog(long pos) {
+        byte[] block = new byte[blockSize];
+        lower.read(logStart + 1 + (int) (pos % capacity), block);
+        return block;
+    }
+
+    /** Records the head of the log in the journal superblock. */
+    private void writeSuper() {
+        byte[] block = new byte[blockSize];
+        ByteBuffer.wrap(block).putInt(SUPER_MAGIC).putInt(capacity)
+            .putLong(head).putLong(headSeq);
+        lower.write(logStart, block);
+    }
+
+    /** Applies every complete transaction in the log to the home
+     * locations, then empties the log.  Called once, at power on.
+     * @return the number of transactions replayed
+     */
+    public int replay() {
+        synchronized (logLock) {
+            ByteBuffer sb = ByteBuffer.wrap(readBlock(logStart));
+            if (sb.getInt() != SUPER_MAGIC || sb.getInt() != capacity) {
+                head = tail = 0;
+                headSeq = seq = 1;
+                writeSuper();
+                return 0;
+            }
+            long pos = sb.getLong();
+            long s = sb.getLong();
+            int replayed = 0;
+            for (;;) {
+                TreeMap<Integer, byte[]> txn = new TreeMap<Integer, byte[]>();
+                long p = pos;
+                CRC32 crc = new CRC32();
+                crcLong(crc, s);
+                boolean more = true;
+                boolean ok = true;
+                while (more && ok) {
+                    ByteBuffer d = ByteBuffer.wrap(readLog(p++));
+                    ok = d.getInt() == DESCRIPTOR_MAGIC && d.getLong() == s;
+                    int count = d.getInt();
+                    more = d.getInt() != 0;
+                    ok = ok && count > 0 && count <= perDescriptor
+                        && p + count - pos < capacity;
+                    for (int i = 0; ok && i < count; i++) {
+                        byte[] data = readLog(p++);
+                        int b = d.getInt();
+                        ok = b >= 0 && b < homeBlocks;
+                        crcInt(crc, b);
+                        crc.update(data, 0, blockSize);
+                        txn.put(b, data);
+                    }
+                }
+                if (ok) {
+                    ByteBuffer c = ByteBuffer.wrap(readLog(p++));
+                    ok = c.getInt() == COMMIT_MAGIC && c.getLong() == s
+                        && c.getLong() == crc.getValue();
+                }
+                if (!ok) {
+                    break;
+                }
+                for (Map.Entry<Integer, byte[]> e : txn.entrySet()) {
+                    lower.write(e.getKey(), e.getValue());
+                }
+                pos = p;
+                s++;
+                replayed++;
+            }
+            head = tail = pos;
+            headSeq = seq = s;
+            writeSuper();
+            return replayed;
+        }
+    }
+
+    /** Adds a number to a CRC, high byte first. */
+    private static void crcInt(CRC32 crc, int v) {
+        crc.update(v >>> 24);
+        crc.update(v >>> 16);
+        crc.update(v >>> 8);
+        crc.update(v);
+    }
+
+    /** Adds a number to a CRC, high byte first. */
+    private static void crcLong(CRC32 crc, long v) {
+        crcInt(crc, (int) (v >>> 32));
+        crcInt(crc, (int) v);
+    }
+
+    /** Reads a block of the device below. */
+    private byte[] readBlock(int blockNum) {
+        byte[] block = new byte[blockSize];
+        lower.read(blockNum, block);
+        return block;
+    }
+
+    /** @return a one-line summary of the journal's activity */
+    public synchronized String getStats() {
+        return commits + " journal commits of " + blocksLogged
+            + " blocks, " + checkpoints + " checkpoints";
+    }
+}
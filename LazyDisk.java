@@ -0,0 +1,263 @@
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.util.*;
+
+/** A Disk that loads its contents on demand.
+ * <p>
+ * A plain Disk reads the whole DISK file when it is created, or fills
+ * every block with junk if there is no file, so the time to boot grows
+ * with the size of the disk.  A LazyDisk does neither.  Blocks are kept
+ * in a two-level table that is filled in as blocks are used:
+ * <ul>
+ * <li> The first read of a block faults it in from the DISK file with a
+ *      positional read.
+ * <li> A write replaces the whole block, so it never needs the old
+ *      contents from the file.
+ * <li> On a new disk (no DISK file), blocks that have never been written
+ *      are synthesized on each read: block zero is all nulls and the rest
+ *      contain the same junk a plain Disk would have put there.
+ * </ul>
+ * Creating a LazyDisk takes time proportional to DISK_SIZE / CHUNK, which
+ * is negligible even for disks of millions of blocks.
+ * <p>
+ * Checkpoints and flush write only the blocks that have been written, so
+ * the DISK file is created sparse.  Blocks never written on a new disk
+ * will read back as nulls after the next boot rather than as junk.
+ *
+ * @see Disk
+ */
+public class LazyDisk extends Disk {
+    /** The number of blocks covered by one second-level table. */
+    protected static final int CHUNK = 4096;
+
+    /** The fill pattern for blocks that have never been written. */
+    protected static final byte JUNK[] = new byte[BLOCK_SIZE];
+    static {
+        for (int i = 0; i < BLOCK_SIZE; ) {
+            JUNK[i++] = 74;
+            JUNK[i++] = 85;
+            JUNK[i++] = 78;
+            JUNK[i++] = 75;
+        }
+    }
+
+    /** Resident blocks, indexed by [block / CHUNK][block % CHUNK].
+     * A null entry is a block that has not been loaded or written.
+     */
+    private byte table[][][];
+
+    /** Blocks written since the last checkpoint. */
+    protected BitSet dirty = new BitSet();
+
+    /** Protects table and dirty. */
+    protected final Object lock = new Object();
+
+    /** The DISK file, or null if it does not exist yet. */
+    private FileChannel channel;
+
+    /** True if this disk had no DISK file when it was created. */
+    private boolean fresh;
+
+    /** A count of blocks read in from the DISK file, for statistics. */
+    protected int faultCount;
+
+    /** Creates a new LazyDisk backed by the DISK file, if there is one.
+     * It is an error if the DISK file exists but its size does not match
+     * "size".
+     * @param size the total size of this disk, in blocks.
+     */
+    public LazyDisk(int size) {
+        this(size, openImage(size));
+        if (channel == null) {
+            System.out.println("Creating new disk");
+        } else {
+            System.out.println("Attached file DISK");
+        }
+    } // constructor
+
+    /** Creates a new LazyDisk.
+     * @param size the total size of this disk, in blocks.
+     * @param image the file holding the saved contents, or null if this
+     *      is a new disk.
+     */
+    protected LazyDisk(int size, FileChannel image) {
+        super(size, null);
+        table = new byte[(size + CHUNK - 1) / CHUNK][][];
+        channel = image;
+        fresh = (image == null);
+    } // constructor
+
+    /** Opens the DISK file, if there is one.
+     * @param size the expected size of the disk, in blocks.
+     * @return the open file, or null if it does not exist.
+     */
+    private static FileChannel openImage(int size) {
+        File diskName = new File("DISK");
+        if (!diskName.exists()) {
+            return null;
+        }
+        if (diskName.length() != (long) size * BLOCK_SIZE) {
+            throw new DiskException(
+                "File DISK exists but is the wrong size");
+        }
+        try {
+            return new RandomAccessFile(diskName, "rw").getChannel();
+        } catch (IOException e) {
+            e.printStackTrace();
+            System.exit(1);
+        }
+        return null;
+    } // openImage
+
+    /////////////////////////////////////////// Resident block table
+
+    /** Returns a resident block.  The caller must hold the lock.
+     * @param blockNumber the block.
+     * @return the block's contents, or null if it is not resident.
+     */
+    protected byte[] getResident(int blockNumber) {
+        byte chunk[][] = table[blockNumber / CHUNK];
+        return chunk == null ? null : chunk[blockNumber % CHUNK];
+    } // getResident
+
+    /** Makes a block resident.  The caller must hold the lock.
+     * @param blockNumber the block.
+     * @param block its contents, BLOCK_SIZE bytes.
+     */
+    protected void setResident(int blockNumber, byte block[]) {
+        int c = blockNumber / CHUNK;
+        if (table[c] == null) {
+            table[c] = new byte[CHUNK][];
+        }
+        table[c][blockNumber % CHUNK] = block;
+    } // setResident
+
+    /** Fills in a block that is not resident.
+     * If the disk has a backing file, the block is read from it and made
+     * resident.  Otherwise the block has never been written and is
+     * synthesized into the buffer without being made resident.
+     * The caller must hold the lock.
+     * @param blockNumber the block.
+     * @param buffer where to put its contents.
+     */
+    protected void fault(int blockNumber, byte buffer[]) throws IOException {
+        if (fresh) {
+            if (blockNumber == 0) {
+                Arrays.fill(buffer, 0, BLOCK_SIZE, (byte) 0);
+            } else {
+                System.arraycopy(JUNK, 0, buffer, 0, BLOCK_SIZE);
+            }
+            return;
+        }
+        byte block[] = new byte[BLOCK_SIZE];
+        ByteBuffer bb = ByteBuffer.wrap(block);
+        long pos = (long) blockNumber * BLOCK_SIZE;
+        while (bb.hasRemaining()) {
+            int n = channel.read(bb, pos + bb.position());
+            if (n < 0) {
+                break;
+            }
+        }
+        faultCount++;
+        setResident(blockNumber, block);
+        System.arraycopy(block, 0, buffer, 0, BLOCK_SIZE);
+    } // fault
+
+    /////////////////////////////////////////// Data transfer
+
+    /** Copies one block into a buffer, faulting it in if necessary.
+     * @param blockNumber the block to read.
+     * @param buffer where to put the BLOCK_SIZE bytes read.
+     */
+    protected void readData(int blockNumber, byte buffer[]) {
+        synchronized (lock) {
+            byte block[] = getResident(blockNumber);
+            if (block != null) {
+                System.arraycopy(block, 0, buffer, 0, BLOCK_SIZE);
+                return;
+            }
+            try {
+                fault(blockNumber, buffer);
+            } catch (IOException e) {
+                e.printStackTrace();
+                System.exit(1);
+            }
+        }
+    } // readData
+
+    /** Stores one block.  Since the whole block is replaced, its old
+     * contents are never loaded.
+     * @param blockNumber the block to write.
+     * @param buffer the BLOCK_SIZE bytes to store.
+     */
+    protected void writeData(int blockNumber, byte buffer[]) {
+        synchronized (lock) {
+            byte block[] = getResident(blockNumber);
+            if (block == null) {
+                block = new byte[BLOCK_SIZE];
+                setResident(blockNumber, block);
+            }
+            System.arraycopy(buffer, 0, block, 0, BLOCK_SIZE);
+            dirty.set(blockNumber);
+        }
+    } // writeData
+
+    /////////////////////////////////////////// Saving
+
+    /** Writes every block modified since the last checkpoint to the DISK
+     * file, creating the file if necessary.  Runs of contiguous dirty
+     * blocks are written with a single gathering write.
+     * @return the number of blocks written.
+     */
+    public int checkpoint() {
+        synchronized (lock) {
+            int written = 0;
+            try {
+                if (channel == null) {
+                    RandomAccessFile f = new RandomAccessFile("DISK", "rw");
+                    f.setLength((long) DISK_SIZE * BLOCK_SIZE);
+                    channel = f.getChannel();
+                }
+                int start = dirty.nextSetBit(0);
+                while (start >= 0) {
+                    int end = dirty.nextClearBit(start);
+                    ByteBuffer run[] = new ByteBuffer[end - start];
+                    for (int i = start; i < end; i++) {
+                        run[i - start] = ByteBuffer.wrap(getResident(i));
+                    }
+                    channel.position((long) start * BLOCK_SIZE);
+                    long remaining = (long) run.length * BLOCK_SIZE;
+                    while (remaining > 0) {
+                        remaining -= channel.write(run);
+                    }
+                    written += run.length;
+                    start = dirty.nextSetBit(end);
+                }
+                if (written > 0) {
+                    channel.force(false);
+                }
+            } catch (IOException e) {
+                e.printStackTrace();
+                System.exit(1);
+            }
+            dirty.clear();
+            return written;
+        }
+    } // checkpoint
+
+    /** Saves the written blocks and prints some statistics. */
+    public void flush() {
+        System.out.println("Saving changed blocks to DISK file...");
+        int n = checkpoint();
+        try {
+            channel.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        System.out.println(readCount + " read operations and "
+            + writeCount + " write operations performed");
+        System.out.println(faultCount + " blocks loaded and "
+            + n + " blocks saved");
+    } // flush
+} // LazyDisk
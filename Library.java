@@ -1,5 +1,7 @@
 /* $Id: Library.p4.java,v 1.12 2004/03/31 17:12:22 solomon Exp solomon $ */
 
+import java.nio.ByteBuffer;
+
 /** Convenience calls for using the Kernel.
  * Each function in this class makes a system call.  Sometimes, the arguments
  * are manipulated to make their user representation more convenient.
@@ -32,7 +34,13 @@ public class Library {
         "End of file on console input", // ERROR_END_OF_FILE = -6
         "I/O error on console input",   // ERROR_IO = -7
         "Exception in user program",    // ERROR_IN_CHILD = -8
-        "No such process"               // ERROR_NO_SUCH_PROCESS = -9
+        "No such process",              // ERROR_NO_SUCH_PROCESS = -9
+        "No such file or directory",    // ERROR_NO_SUCH_FILE = -10
+        "No space left on device",      // ERROR_NO_SPACE = -11
+        "Bad file descriptor",          // ERROR_BAD_FD = -12
+        "Data on disk is corrupt",      // ERROR_CORRUPT = -13
+        "No file system on disk (run Mkfs)", // ERROR_NO_FILE_SYSTEM = -14
+        "File system does not fit the disk"  // ERROR_WRONG_FILE_SYSTEM = -15
     };
 
     /** Performs SYSCALL_OUTPUT.
@@ -45,6 +53,24 @@ public class Library {
             Kernel.SYSCALL_OUTPUT, 0, s, null, null);
     } // output
 
+    /** Performs SYSCALL_FLUSH_OUTPUT.
+     * Waits until everything displayed with output() is on the console.
+     * @return zero
+     */
+    public static int flushOutput() {
+        return Kernel.interrupt(Kernel.INTERRUPT_USER,
+            Kernel.SYSCALL_FLUSH_OUTPUT, 0, null, null, null);
+    } // flushOutput
+
+    /** Performs SYSCALL_FORMAT.
+     * Makes a new, empty file system on the disk.
+     * @return zero or an error code
+     */
+    public static int format() {
+        return Kernel.interrupt(Kernel.INTERRUPT_USER,
+            Kernel.SYSCALL_FORMAT, 0, null, null, null);
+    } // format
+
     /** Performs SYSCALL_INPUT.
      * Waits for the user to type some text and hit [return].
      * The input line is returned in the supplied StringBuffer
@@ -80,15 +106,14 @@ public class Library {
             Kernel.SYSCALL_JOIN, pid, null, null, null);
     } // join
 
+    /** Performs SYSCALL_GET_TIME.
+     * Returns the time of day, in ms since the epoch.  Unlike the other
+     * calls here, this one cannot fail.
+     *
+     * @return the time
+     */
     public static long getTime() {
-        long[] t= new long[1];
-        int rc = Kernel.interrupt(Kernel.INTERRUPT_USER,
-                   Kernel.SYSCALL_GET_TIME,0,t,null,null);
-        if (rc < 0) {
-            return rc;
-        } else {
-            return t[0];
-        }
+        return Kernel.getTime();
     } // getTime
 
     /** Performs SYSCALL_GET_BLOCK_SIZE.
@@ -97,10 +122,7 @@ public class Library {
      * @return block size
      */
     public static int getDiskBlockSize() {
-        int size;
-        size = Kernel.interrupt(Kernel.INTERRUPT_USER,
-                                 Kernel.SYSCALL_GET_BLOCK_SIZE,0,null,null,null);
-        return size;
+        return Kernel.getBlockSize();
     }
 
     /** Performs SYSCALL_GET_BLOCK_COUNT.
@@ -109,24 +131,237 @@ public class Library {
      * @return block count
      */
     public static int getDiskBlockCount() {
-        int count;
-        count = Kernel.interrupt(Kernel.INTERRUPT_USER,
-                                 Kernel.SYSCALL_GET_BLOCK_COUNT,0,null,null,null);
-        return count;
+        return Kernel.getBlockCount();
     }
 
+    /** Performs SYSCALL_WRITE_DISK_BLOCK.
+     * Writes one block.
+     *
+     * @param blockNum the block
+     * @param data a buffer of one block
+     * @return zero or an error code
+     */
     public static int writeDiskBlock(int blockNum, byte[] data) {
-        int err;
-        err = Kernel.interrupt(Kernel.INTERRUPT_USER,
-                                 Kernel.SYSCALL_WRITE_DISK_BLOCK,blockNum,data,null,null);
-        return err;
+        return Kernel.writeBlock(blockNum, data);
     }
 
+    /** Performs SYSCALL_READ_DISK_BLOCK.
+     * Reads one block.
+     *
+     * @param blockNum the block
+     * @param data a buffer of one block
+     * @return zero or an error code
+     */
     public static int readDiskBlock(int blockNum, byte[] data) {
-        int err;
-        err = Kernel.interrupt(Kernel.INTERRUPT_USER,
-                                 Kernel.SYSCALL_READ_DISK_BLOCK,blockNum,data,null,null);
-        return err;
+        return Kernel.readBlock(blockNum, data);
+    }
+
+    /** Performs SYSCALL_READ_DISK_EXTENT.
+     * Reads data.length / getDiskBlockSize() contiguous blocks, starting
+     * at blockNum, in as few disk operations as possible.
+     *
+     * @param blockNum the first block
+     * @param data a buffer holding a whole number of blocks
+     * @return zero or an error code
+     */
+    public static int readDiskExtent(int blockNum, byte[] data) {
+        return Kernel.interrupt(Kernel.INTERRUPT_USER,
+                                Kernel.SYSCALL_READ_DISK_EXTENT,blockNum,null,null,data);
+    }
+
+    /** Performs SYSCALL_WRITE_DISK_EXTENT.
+     * Writes data.length / getDiskBlockSize() contiguous blocks, starting
+     * at blockNum, in as few disk operations as possible.
+     *
+     * @param blockNum the first block
+     * @param data a buffer holding a whole number of blocks
+     * @return zero or an error code
+     */
+    public static int writeDiskExtent(int blockNum, byte[] data) {
+        return Kernel.interrupt(Kernel.INTERRUPT_USER,
+                                Kernel.SYSCALL_WRITE_DISK_EXTENT,blockNum,null,null,data);
+    }
+
+    /** Performs SYSCALL_OPEN.
+     * Opens a file in the file system.
+     *
+     * @param path the path name, components separated by slashes
+     * @param flags a combination of Kernel.OPEN_CREATE,
+     * Kernel.OPEN_TRUNCATE and Kernel.OPEN_DIRECTORY
+     * @return a file descriptor or an error code
+     */
+    public static int open(String path, int flags) {
+        return Kernel.interrupt(Kernel.INTERRUPT_USER,
+                                Kernel.SYSCALL_OPEN,flags,path,null,null);
+    }
+
+    /** Performs SYSCALL_READ.
+     * Reads up to buf.length bytes from an open file.
+     *
+     * @param fd a file descriptor returned by open
+     * @param buf where to put the data
+     * @return the number of bytes read (zero at end of file) or an error code
+     */
+    public static int read(int fd, byte[] buf) {
+        return Kernel.interrupt(Kernel.INTERRUPT_USER,
+                                Kernel.SYSCALL_READ,fd,null,null,buf);
+    }
+
+    /** Performs SYSCALL_WRITE.
+     * Writes buf to an open file.
+     *
+     * @param fd a file descriptor returned by open
+     * @param buf the data
+     * @return the number of bytes written or an error code
+     */
+    public static int write(int fd, byte[] buf) {
+        return Kernel.interrupt(Kernel.INTERRUPT_USER,
+                                Kernel.SYSCALL_WRITE,fd,null,null,buf);
+    }
+
+    /** Performs SYSCALL_CLOSE.
+     *
+     * @param fd a file descriptor returned by open
+     * @return zero or an error code
+     */
+    public static int close(int fd) {
+        return Kernel.interrupt(Kernel.INTERRUPT_USER,
+                                Kernel.SYSCALL_CLOSE,fd,null,null,null);
+    }
+
+    /** Performs SYSCALL_CHECKPOINT.
+     * Saves the contents of the disk without waiting for shutdown.
+     *
+     * @return the number of blocks written
+     */
+    public static int checkpoint() {
+        return Kernel.interrupt(Kernel.INTERRUPT_USER,
+                                Kernel.SYSCALL_CHECKPOINT,0,null,null,null);
+    }
+
+    /** Performs SYSCALL_SNAPSHOT_CREATE.
+     * Takes a snapshot of the disk.
+     *
+     * @param name a name for the snapshot
+     * @return the snapshot's id or an error code
+     */
+    public static int createSnapshot(String name) {
+        return Kernel.interrupt(Kernel.INTERRUPT_USER,
+                                Kernel.SYSCALL_SNAPSHOT_CREATE,0,name,null,null);
+    }
+
+    /** Performs SYSCALL_SNAPSHOT_LIST.
+     * Lists the snapshots, one per line: id, epoch and name.
+     *
+     * @param result a place to put the list
+     * @return the number of snapshots or an error code
+     */
+    public static int listSnapshots(StringBuffer result) {
+        result.setLength(0);
+        return Kernel.interrupt(Kernel.INTERRUPT_USER,
+                                Kernel.SYSCALL_SNAPSHOT_LIST,0,result,null,null);
+    }
+
+    /** Performs SYSCALL_SNAPSHOT_MOUNT.
+     * Mounts a snapshot read-only at /snapshots/<i>name</i>.
+     *
+     * @param name the snapshot's name
+     * @return zero or an error code
+     */
+    public static int mountSnapshot(String name) {
+        return Kernel.interrupt(Kernel.INTERRUPT_USER,
+                                Kernel.SYSCALL_SNAPSHOT_MOUNT,0,name,null,null);
+    }
+
+    /** Performs SYSCALL_SNAPSHOT_DELETE.
+     *
+     * @param name the snapshot's name
+     * @return zero or an error code
+     */
+    public static int deleteSnapshot(String name) {
+        return Kernel.interrupt(Kernel.INTERRUPT_USER,
+                                Kernel.SYSCALL_SNAPSHOT_DELETE,0,name,null,null);
+    }
+
+    /** Performs SYSCALL_CHECKSUM_STATS.
+     *
+     * @param stats where to put the statistics: blocks verified, read
+     * errors, blocks scrubbed, scrub errors, scrub passes and bad blocks
+     * @return zero or an error code
+     */
+    public static int getChecksumStats(long[] stats) {
+        return Kernel.interrupt(Kernel.INTERRUPT_USER,
+                                Kernel.SYSCALL_CHECKSUM_STATS,0,stats,null,null);
+    }
+
+    /** Performs SYSCALL_SET_IO_PRIORITY.
+     *
+     * @param priority Kernel.IO_REALTIME, IO_BEST_EFFORT or IO_IDLE
+     * @return the previous class or an error code
+     */
+    public static int setIoPriority(int priority) {
+        return Kernel.interrupt(Kernel.INTERRUPT_USER,
+                                Kernel.SYSCALL_SET_IO_PRIORITY,priority,
+                                null,null,null);
+    }
+
+    /** Performs SYSCALL_PIN_BLOCK.
+     *
+     * @param blockNum the block
+     * @param view where to put a read-only view of the block; it stays
+     * valid until unpinDiskBlock
+     * @return zero or an error code
+     */
+    public static int pinDiskBlock(int blockNum, ByteBuffer[] view) {
+        return Kernel.interrupt(Kernel.INTERRUPT_USER,
+                                Kernel.SYSCALL_PIN_BLOCK,blockNum,view,
+                                null,null);
+    }
+
+    /** Performs SYSCALL_UNPIN_BLOCK.
+     *
+     * @param blockNum a block pinned with pinDiskBlock
+     * @return zero or an error code
+     */
+    public static int unpinDiskBlock(int blockNum) {
+        return Kernel.interrupt(Kernel.INTERRUPT_USER,
+                                Kernel.SYSCALL_UNPIN_BLOCK,blockNum,null,
+                                null,null);
+    }
+
+    /** Performs SYSCALL_WRITE_BLOCK_BUFFER.
+     *
+     * @param blockNum the block
+     * @param data the block's new contents, from its position
+     * @return zero or an error code
+     */
+    public static int writeDiskBlock(int blockNum, ByteBuffer data) {
+        return Kernel.interrupt(Kernel.INTERRUPT_USER,
+                                Kernel.SYSCALL_WRITE_BLOCK_BUFFER,blockNum,data,
+                                null,null);
+    }
+
+    /** Performs SYSCALL_GET_METRICS.
+     *
+     * @param sb where to append the metrics, one per line
+     * @return zero or an error code
+     */
+    public static int getMetrics(StringBuffer sb) {
+        return Kernel.interrupt(Kernel.INTERRUPT_USER,
+                                Kernel.SYSCALL_GET_METRICS,0,sb,null,null);
+    }
+
+    /** Performs SYSCALL_SET_IO_LIMIT.
+     *
+     * @param pid the process, or zero for the calling process
+     * @param iops the limit on disk operations per second, or zero
+     * @param bytesPerSec the limit on bytes per second, or zero
+     * @return zero or an error code
+     */
+    public static int setIoLimit(int pid, long iops, long bytesPerSec) {
+        return Kernel.interrupt(Kernel.INTERRUPT_USER,
+                                Kernel.SYSCALL_SET_IO_LIMIT,pid,
+                                new long[] { iops, bytesPerSec },null,null);
     }
 
 } // Library
@@ -0,0 +1,798 @@
+import java.nio.*;
+import java.util.*;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.zip.CRC32;
+
+/** A log-structured block layer between the kernel and the Elevator.
+ * <p>
+ * Callers see a smaller device of "logical" blocks.  No logical block has
+ * a fixed place on the disk: an in-memory table maps each one to the
+ * physical block holding its latest copy, and every write goes to the
+ * head of a log, so random writes become sequential appends and the head
+ * hardly has to move.
+ * <p>
+ * <b>Layout.</b>  The disk starts with two checkpoint regions, each a
+ * header block followed by the mapping table.  The rest is divided into
+ * segments of <tt>segmentSize</tt> blocks.  The log is written as units,
+ * packed one after another into the current segment:
+ * <pre>
+ *    summary (seq, next segment, CRC, logical block numbers) + data ...
+ * </pre>
+ * The CRC covers the seq, the next segment and the block numbers as well
+ * as the data, so a damaged summary is never rolled forward.
+ * Each batch of writes is one unit written with one extent operation, and
+ * concurrent writers are batched together the same way the Journal does
+ * it.  A write returns once its unit is on disk.
+ * <p>
+ * <b>Persistence.</b>  flush() (called by SYSCALL_CHECKPOINT and at
+ * shutdown) writes the mapping table to the older of the two checkpoint
+ * regions, then its header.  mount() loads the newest valid checkpoint
+ * and rolls forward through the units written after it, following the
+ * chain of segments recorded in their summaries, so nothing written
+ * before a crash is lost.
+ * <p>
+ * <b>Cleaning.</b>  A daemon thread watches the number of free segments.
+ * When it runs low, the cleaner picks segments by cost-benefit (mostly
+ * empty and long unchanged first), copies their live blocks to the head
+ * of the log, and frees them.  A cleaned segment is reused only after the
+ * next checkpoint, so the chain of units needed for roll-forward is never
+ * overwritten.
+ *
+ * @see Kernel
+ * @see Journal
+ */
+public class LogStructured implements BlockDevice {
+    /** Magic number of a checkpoint header ("LFCP"). */
+    private static final int CHECKPOINT_MAGIC = 0x4c464350;
+
+    /** Magic number of a unit summary ("LFSU"). */
+    private static final int SUMMARY_MAGIC = 0x4c465355;
+
+    /** The size of a summary's header: magic, seq, count, next, CRC. */
+    private static final int SUMMARY_HEADER = 28;
+
+    /** How often the cleaner checks the number of free segments (ms). */
+    private static final int CLEANER_INTERVAL = 50;
+
+    private BlockDevice lower;
+    private int blockSize;
+    private int segmentSize;
+
+    /** The number of logical blocks. */
+    private int logical;
+
+    /** The number of blocks in the mapping table. */
+    private int mapBlocks;
+
+    /** The first block of the second checkpoint region. */
+    private int region1;
+
+    /** The first block of segment 0. */
+    private int segmentStart;
+
+    /** The number of segments. */
+    private int segments;
+
+    /** The number of block numbers that fit in one summary. */
+    private int perSummary;
+
+    /** Clean when fewer segments than this are free... */
+    private int lowWater;
+
+    /** ...until this many are. */
+    private int highWater;
+
+    /** Logical to physical block, or -1 if never written. */
+    private int[] map;
+
+    /** The number of live blocks in each segment. */
+    private int[] live;
+
+    /** The seq of the last unit written to each segment. */
+    private long[] age;
+
+    /** Segments ready for reuse. */
+    private LinkedList<Integer> free = new LinkedList<Integer>();
+
+    /** Segments cleaned since the last checkpoint. */
+    private ArrayList<Integer> freed = new ArrayList<Integer>();
+
+    /** The head of the log: the segment, the block within it, and the
+     * segment that follows it.
+     */
+    private int curSeg;
+    private int curOff;
+    private int nextSeg;
+
+    /** The seq of the next unit. */
+    private long seq;
+
+    /** The number of checkpoints ever written. */
+    private long checkpointSeq;
+
+    /** Whether the cleaner is running (so that it does not recurse). */
+    private boolean cleaning;
+
+    /** Serializes appends, cleaning and checkpoints. */
+    private Object logLock = new Object();
+
+    /** Held by readers while they use a mapping, and exclusively while
+     * cleaned segments are made reusable.
+     */
+    private ReentrantReadWriteLock reuse = new ReentrantReadWriteLock();
+
+    /** Writes waiting for the next unit. */
+    private LinkedHashMap<Integer, byte[]> batch
+        = new LinkedHashMap<Integer, byte[]>();
+
+    /** Writes being appended by the leader, or null. */
+    private LinkedHashMap<Integer, byte[]> committing;
+
+    private long batchTicket = 1;
+    private long committedTicket = 0;
+    private boolean leaderActive;
+
+    /** Where the result of the batch currently accepting writes goes. */
+    private int[] batchResult = new int[1];
+
+    /** Statistics. */
+    private long units;
+    private long blocksWritten;
+    private long segmentsCleaned;
+    private long blocksCopied;
+
+    /** Creates a log-structured layer on top of a device.
+     * Call mount() before using it.
+     * @param lower the device.
+     * @param segmentSize the size of a segment in blocks.
+     * @param reserve the percentage of segments kept back from callers,
+     *      which gives the cleaner room to work.
+     */
+    public LogStructured(BlockDevice lower, int segmentSize, int reserve) {
+        this.lower = lower;
+        this.segmentSize = segmentSize;
+        blockSize = lower.getBlockSize();
+        int physical = lower.getBlockCount();
+        mapBlocks = (int) (((long) physical * 4 + blockSize - 1) / blockSize);
+        region1 = 1 + mapBlocks;
+        segmentStart = 2 * region1;
+        segments = (physical - segmentStart) / segmentSize;
+        perSummary = (blockSize - SUMMARY_HEADER) / 4;
+        if (segmentSize < 4 || segments < 8 || reserve < 0 || reserve > 90) {
+            throw new IllegalArgumentException("bad log layout: " + segments
+                + " segments of " + segmentSize + " blocks");
+        }
+        int spare = Math.max(3, segments * reserve / 100);
+        logical = (segments - spare) * (segmentSize - 1);
+        lowWater = Math.max(2, spare / 2);
+        highWater = Math.max(3, spare);
+        map = new int[logical];
+        live = new int[segments];
+        age = new long[segments];
+    } // constructor
+
+    /////////////////////////////////////////// BlockDevice
+
+    public int read(int blockNum, byte[] data) {
+        reuse.readLock().lock();
+        try {
+            int phys;
+            synchronized (this) {
+                byte[] v = lookup(blockNum);
+                if (v != null) {
+                    System.arraycopy(v, 0, data, 0, blockSize);
+                    return 0;
+                }
+                phys = map[blockNum];
+            }
+            if (phys < 0) {
+                Arrays.fill(data, 0, blockSize, (byte) 0);
+                return 0;
+            }
+            return lower.read(phys, data);
+        } finally {
+            reuse.readLock().unlock();
+        }
+    }
+
+    public int write(int blockNum, byte[] data) {
+        LinkedHashMap<Integer, byte[]> g = new LinkedHashMap<Integer, byte[]>();
+        g.put(blockNum, Arrays.copyOf(data, blockSize));
+        return submit(g);
+    }
+
+    /** Reads an extent, with one operation for each run of it that is
+     * also contiguous on the disk.
+     */
+    public int readExtent(int blockNum, int count, byte[] data) {
+        reuse.readLock().lock();
+        try {
+            int[] phys = new int[count];
+            synchronized (this) {
+                for (int i = 0; i < count; i++) {
+                    byte[] v = lookup(blockNum + i);
+                    if (v != null) {
+                        System.arraycopy(v, 0, data, i * blockSize, blockSize);
+                        phys[i] = -2;
+                    } else {
+                        phys[i] = map[blockNum + i];
+                    }
+                }
+            }
+            int i = 0;
+            while (i < count) {
+                if (phys[i] < 0) {
+                    if (phys[i] == -1) {
+                        Arrays.fill(data, i * blockSize, (i + 1) * blockSize,
+                                    (byte) 0);
+                    }
+                    i++;
+                    continue;
+                }
+                int j = i + 1;
+                while (j < count && phys[j] == phys[j - 1] + 1) {
+                    j++;
+                }
+                int rc;
+                if (i == 0 && j == count) {
+                    rc = lower.readExtent(phys[i], count, data);
+                } else {
+                    byte[] run = new byte[(j - i) * blockSize];
+                    rc = lower.readExtent(phys[i], j - i, run);
+                    System.arraycopy(run, 0, data, i * blockSize, run.length);
+                }
+                if (rc < 0) {
+                    return rc;
+                }
+                i = j;
+            }
+            return 0;
+        } finally {
+            reuse.readLock().unlock();
+        }
+    }
+
+    public int writeExtent(int blockNum, int count, byte[] data) {
+        LinkedHashMap<Integer, byte[]> g = new LinkedHashMap<Integer, byte[]>();
+        for (int i = 0; i < count; i++) {
+            g.put(blockNum + i, Arrays.copyOfRange(data, i * blockSize,
+                                                   (i + 1) * blockSize));
+        }
+        return submit(g);
+    }
+
+    public int getBlockSize() {
+        return blockSize;
+    }
+
+    public int getBlockCount() {
+        return logical;
+    }
+
+    /** Writes a checkpoint of the mapping table.
+     * @return zero or an error code
+     */
+    public int flush() {
+        synchronized (logLock) {
+            checkpoint();
+        }
+        return lower.flush();
+    }
+
+    /////////////////////////////////////////// Writing
+
+    /** Returns a block waiting to be written.  Caller must hold the lock.
+     * @return the data, or null if the mapping is current
+     */
+    private byte[] lookup(int blockNum) {
+        byte[] v = batch.get(blockNum);
+        if (v == null && committing != null) {
+            v = committing.get(blockNum);
+        }
+        return v;
+    }
+
+    /** Adds writes to the current batch and waits until they are on disk.
+     * If no one is appending, the caller becomes the leader and appends
+     * batches until there are none left.
+     * @param g the writes; the layer keeps the arrays
+     * @return zero or an error code
+     */
+    private int submit(LinkedHashMap<Integer, byte[]> g) {
+        int[] result;
+        synchronized (this) {
+            batch.putAll(g);
+            long ticket = batchTicket;
+            result = batchResult;
+            while (leaderActive && committedTicket < ticket) {
+                try {
+                    wait();
+                } catch (InterruptedException e) {
+                    e.printStackTrace();
+                }
+            }
+            if (committedTicket >= ticket) {
+                return result[0];
+            }
+            // No one is appending, or the leader gave up
+            leaderActive = true;
+        }
+        LinkedHashMap<Integer, byte[]> mine = null;
+        long ticket = 0;
+        int[] rc = null;
+        try {
+            for (;;) {
+                synchronized (this) {
+                    if (batch.isEmpty()) {
+                        return result[0];
+                    }
+                    mine = batch;
+                    ticket = batchTicket++;
+                    rc = batchResult;
+                    committing = mine;
+                    batch = new LinkedHashMap<Integer, byte[]>();
+                    batchResult = new int[1];
+                }
+                int n = mine.size();
+                int[] blocks = new int[n];
+                byte[][] datas = new byte[n][];
+                int k = 0;
+                for (Map.Entry<Integer, byte[]> e : mine.entrySet()) {
+                    blocks[k] = e.getKey();
+                    datas[k] = e.getValue();
+                    k++;
+                }
+                synchronized (logLock) {
+                    rc[0] = append(blocks, datas, n);
+                }
+                synchronized (this) {
+                    committing = null;
+                    committedTicket = ticket;
+                    mine = null;
+                    notifyAll();
+                }
+            }
+        } finally {
+            synchronized (this) {
+                if (mine != null) {
+                    // append threw; fail the batch rather than strand it
+                    rc[0] = Kernel.ERROR_IO;
+                    committing = null;
+                    committedTicket = ticket;
+                }
+                leaderActive = false;
+                notifyAll();
+            }
+        }
+    }
+
+    /** Appends blocks to the log, as many units as it takes, and points
+     * the mapping at them.  Caller must hold logLock.
+     * @param blocks logical block numbers, all different
+     * @param datas their contents
+     * @param n how many
+     * @return zero, ERROR_NO_SPACE if there is no free segment to move
+     *      to, or an I/O error; blocks appended before the error stay
+     */
+    private int append(int[] blocks, byte[][] datas, int n) {
+        int i = 0;
+        while (i < n) {
+            if (segmentSize - curOff < 2) {
+                int rc = advance();
+                if (rc < 0) {
+                    return rc;
+                }
+            }
+            int k = Math.min(n - i,
+                             Math.min(perSummary, segmentSize - curOff - 1));
+            byte[] unit = new byte[(k + 1) * blockSize];
+            ByteBuffer bb = ByteBuffer.wrap(unit);
+            CRC32 crc = new CRC32();
+            crcLong(crc, seq);
+            crcInt(crc, nextSeg);
+            for (int j = 0; j < k; j++) {
+                crcInt(crc, blocks[i + j]);
+            }
+            for (int j = 0; j < k; j++) {
+                System.arraycopy(datas[i + j], 0, unit, (j + 1) * blockSize,
+                                 blockSize);
+                crc.update(datas[i + j], 0, blockSize);
+            }
+            bb.putInt(SUMMARY_MAGIC).putLong(seq).putInt(k).putInt(nextSeg)
+                .putLong(crc.getValue());
+            for (int j = 0; j < k; j++) {
+                bb.putInt(blocks[i + j]);
+            }
+            int base = segmentStart + curSeg * segmentSize + curOff;
+            int rc = lower.writeExtent(base, k + 1, unit);
+            if (rc < 0) {
+                return rc;
+            }
+            synchronized (this) {
+                for (int j = 0; j < k; j++) {
+                    remap(blocks[i + j], base + 1 + j);
+                }
+                age[curSeg] = seq;
+            }
+            seq++;
+            curOff += k + 1;
+            i += k;
+            units++;
+            blocksWritten += k;
+        }
+        return 0;
+    }
+
+    /** Points a logical block at a new physical block, keeping the live
+     * counts.  Caller must hold the lock.
+     */
+    private void remap(int blockNum, int phys) {
+        int old = map[blockNum];
+        if (old >= 0) {
+            live[(old - segmentStart) / segmentSize]--;
+        }
+        map[blockNum] = phys;
+        live[(phys - segmentStart) / segmentSize]++;
+    }
+
+    /** Moves the head of the log to the next segment, cleaning first if
+     * free segments are short.  Caller must hold logLock.
+     * @return zero, or ERROR_NO_SPACE if no segment is free
+     */
+    private int advance() {
+        if (!cleaning && freeSize() < 2) {
+            clean(highWater);
+            if (segmentSize - curOff >= 2) {
+                return 0;
+            }
+        }
+        if (freeSize() == 0) {
+            checkpoint();
+        }
+        int next = takeFree();
+        if (next < 0) {
+            return Kernel.ERROR_NO_SPACE;
+        }
+        curSeg = nextSeg;
+        curOff = 0;
+        nextSeg = next;
+        return 0;
+    }
+
+    /** @return the number of segments ready for reuse */
+    private synchronized int freeSize() {
+        return free.size();
+    }
+
+    /** @return a free segment, or -1 if there is none */
+    private synchronized int takeFree() {
+        Integer s = free.poll();
+        return s == null ? -1 : s;
+    }
+
+    /** @return the number of segments free or freed by the cleaner */
+    private synchronized int freeCount() {
+        return free.size() + freed.size();
+    }
+
+    /////////////////////////////////////////// Cleaning
+
+    /** Cleans segments until <tt>wanted</tt> are free (or none is worth
+     * cleaning), then checkpoints so they can be reused.
+     * Caller must hold logLock.
+     */
+    private void clean(int wanted) {
+        cleaning = true;
+        try {
+            for (int tries = 0; tries < segments && freeCount() < wanted;
+                 tries++)
+            {
+                int victim = pickVictim();
+                if (victim < 0) {
+                    break;
+                }
+                cleanSegment(victim);
+            }
+            checkpoint();
+        } finally {
+            cleaning = false;
+        }
+    } // clean
+
+    /** Chooses the segment with the best ratio of space freed, weighted
+     * by age, to blocks copied.
+     * @return the segment, or -1 if no segment is worth cleaning
+     */
+    private synchronized int pickVictim() {
+        int best = -1;
+        double bestScore = 0;
+        boolean[] avoid = new boolean[segments];
+        for (int s : free) {
+            avoid[s] = true;
+        }
+        for (int s : freed) {
+            avoid[s] = true;
+        }
+        avoid[curSeg] = true;
+        avoid[nextSeg] = true;
+        for (int s = 0; s < segments; s++) {
+            double u = (double) live[s] / (segmentSize - 1);
+            if (avoid[s] || u >= 1) {
+                continue;
+            }
+            double score = (1 - u) * (seq - age[s] + 1) / (1 + u);
+            if (score > bestScore) {
+                best = s;
+                bestScore = score;
+            }
+        }
+        return best;
+    } // pickVictim
+
+    /** Copies the live blocks of a segment to the head of the log and
+     * frees it.  Caller must hold logLock.
+     */
+    private void cleanSegment(int s) {
+        int base = segmentStart + s * segmentSize;
+        byte[] seg = new byte[segmentSize * blockSize];
+        lower.readExtent(base, segmentSize, seg);
+        ArrayList<Integer> blocks = new ArrayList<Integer>();
+        ArrayList<byte[]> datas = new ArrayList<byte[]>();
+        int off = 0;
+        long last = -1;
+        while (segmentSize - off >= 2) {
+            ByteBuffer bb = ByteBuffer.wrap(seg, off * blockSize, blockSize);
+            if (bb.getInt() != SUMMARY_MAGIC) {
+                break;
+            }
+            long useq = bb.getLong();
+            int k = bb.getInt();
+            bb.getInt();
+            bb.getLong();
+            if (useq <= last || k < 1 || k > perSummary
+                || off + 1 + k > segmentSize)
+            {
+                break;
+            }
+            last = useq;
+            synchronized (this) {
+                for (int j = 0; j < k; j++) {
+                    int b = bb.getInt();
+                    int phys = base + off + 1 + j;
+                    if (b >= 0 && b < logical && map[b] == phys) {
+                        blocks.add(b);
+                        datas.add(Arrays.copyOfRange(seg,
+                            (off + 1 + j) * blockSize,
+                            (off + 2 + j) * blockSize));
+                    }
+                }
+            }
+            off += 1 + k;
+        }
+        int n = blocks.size();
+        int[] b = new int[n];
+        for (int i = 0; i < n; i++) {
+            b[i] = blocks.get(i);
+        }
+        if (append(b, datas.toArray(new byte[n][]), n) < 0) {
+            // Still live; the segment is tried again on a later pass
+            return;
+        }
+        synchronized (this) {
+            if (live[s] == 0) {
+                freed.add(s);
+            }
+        }
+        segmentsCleaned++;
+        blocksCopied += n;
+    } // cleanSegment
+
+    /** Starts the cleaner thread. */
+    private void startCleaner() {
+        Thread t = new Thread("CLEANER") {
+            public void run() {
+                for (;;) {
+                    try {
+                        Thread.sleep(CLEANER_INTERVAL);
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                    synchronized (logLock) {
+                        if (freeCount() < lowWater) {
+                            clean(highWater);
+                        }
+                    }
+                }
+            }
+        };
+        t.setDaemon(true);
+        t.start();
+    } // startCleaner
+
+    /////////////////////////////////////////// Checkpoints
+
+    /** Writes the mapping table and the head of the log to the older
+     * checkpoint region, then makes cleaned segments reusable.
+     * Caller must hold logLock.
+     */
+    private void checkpoint() {
+        byte[] table = new byte[mapBlocks * blockSize];
+        synchronized (this) {
+            ByteBuffer.wrap(table).asIntBuffer().put(map);
+        }
+        CRC32 crc = new CRC32();
+        crc.update(table, 0, table.length);
+        checkpointSeq++;
+        int region = (checkpointSeq % 2 == 0) ? 0 : region1;
+        lower.writeExtent(region + 1, mapBlocks, table);
+        byte[] header = new byte[blockSize];
+        ByteBuffer.wrap(header).putInt(CHECKPOINT_MAGIC).putLong(checkpointSeq)
+            .putLong(seq).putInt(curSeg).putInt(curOff).putInt(nextSeg)
+            .putInt(logical).putInt(segmentSize).putLong(crc.getValue());
+        lower.write(region, header);
+        reuse.writeLock().lock();
+        try {
+            synchronized (this) {
+                free.addAll(freed);
+                freed.clear();
+            }
+        } finally {
+            reuse.writeLock().unlock();
+        }
+    } // checkpoint
+
+    /** Loads the newest checkpoint, rolls forward through the log written
+     * since, writes a new checkpoint and starts the cleaner.  Called once,
+     * at power on.  A disk without a checkpoint starts out empty.
+     * @return the number of units rolled forward
+     */
+    public int mount() {
+        synchronized (logLock) {
+            long best = 0;
+            ByteBuffer header = null;
+            for (int region : new int[] { 0, region1 }) {
+                byte[] block = new byte[blockSize];
+                lower.read(region, block);
+                ByteBuffer bb = ByteBuffer.wrap(block);
+                if (bb.getInt() != CHECKPOINT_MAGIC) {
+                    continue;
+                }
+                long cs = bb.getLong();
+                if (cs <= best) {
+                    continue;
+                }
+                byte[] table = new byte[mapBlocks * blockSize];
+                lower.readExtent(region + 1, mapBlocks, table);
+                bb.position(32);
+                if (bb.getInt() != logical || bb.getInt() != segmentSize) {
+                    continue;
+                }
+                CRC32 crc = new CRC32();
+                crc.update(table, 0, table.length);
+                if (bb.getLong() != crc.getValue()) {
+                    continue;
+                }
+                best = cs;
+                header = bb;
+                ByteBuffer.wrap(table).asIntBuffer().get(map);
+            }
+            int rolled = 0;
+            if (header == null) {
+                Arrays.fill(map, -1);
+                seq = 1;
+                curSeg = 0;
+                curOff = 0;
+                nextSeg = 1;
+            } else {
+                checkpointSeq = best;
+                header.position(12);
+                seq = header.getLong();
+                curSeg = header.getInt();
+                curOff = header.getInt();
+                nextSeg = header.getInt();
+                rolled = rollForward();
+            }
+            Arrays.fill(live, 0);
+            for (int phys : map) {
+                if (phys >= 0) {
+                    live[(phys - segmentStart) / segmentSize]++;
+                }
+            }
+            free.clear();
+            for (int s = 0; s < segments; s++) {
+                if (live[s] == 0 && s != curSeg && s != nextSeg) {
+                    free.add(s);
+                }
+            }
+            if (nextSeg < 0 || nextSeg == curSeg) {
+                nextSeg = takeFree();
+                if (nextSeg < 0) {
+                    throw new IllegalStateException("log is full");
+                }
+            }
+            checkpoint();
+            startCleaner();
+            return rolled;
+        }
+    } // mount
+
+    /** Applies the units written after the checkpoint to the mapping,
+     * leaving the head of the log after the last one.
+     * @return the number of units applied
+     */
+    private int rollForward() {
+        int rolled = 0;
+        byte[] summary = new byte[blockSize];
+        for (;;) {
+            if (segmentSize - curOff < 2) {
+                if (nextSeg < 0) {
+                    break;
+                }
+                curSeg = nextSeg;
+                curOff = 0;
+                nextSeg = -1;
+            }
+            int base = segmentStart + curSeg * segmentSize + curOff;
+            lower.read(base, summary);
+            ByteBuffer bb = ByteBuffer.wrap(summary);
+            if (bb.getInt() != SUMMARY_MAGIC || bb.getLong() != seq) {
+                break;
+            }
+            int k = bb.getInt();
+            int next = bb.getInt();
+            long sum = bb.getLong();
+            if (k < 1 || k > perSummary || curOff + 1 + k > segmentSize
+                || next < 0 || next >= segments)
+            {
+                break;
+            }
+            byte[] data = new byte[k * blockSize];
+            lower.readExtent(base + 1, k, data);
+            CRC32 crc = new CRC32();
+            crcLong(crc, seq);
+            crcInt(crc, next);
+            int[] blocks = new int[k];
+            for (int j = 0; j < k; j++) {
+                blocks[j] = bb.getInt();
+                crcInt(crc, blocks[j]);
+            }
+            crc.update(data, 0, data.length);
+            if (crc.getValue() != sum) {
+                break;
+            }
+            for (int j = 0; j < k; j++) {
+                int b = blocks[j];
+                if (b >= 0 && b < logical) {
+                    map[b] = base + 1 + j;
+                }
+            }
+            nextSeg = next;
+            curOff += 1 + k;
+            seq++;
+            rolled++;
+        }
+        return rolled;
+    } // rollForward
+
+    /** Adds a number to a CRC, high byte first. */
+    private static void crcInt(CRC32 crc, int v) {
+        crc.update(v >>> 24);
+        crc.update(v >>> 16);
+        crc.update(v >>> 8);
+        crc.update(v);
+    }
+
+    /** Adds a number to a CRC, high byte first. */
+    private static void crcLong(CRC32 crc, long v) {
+        crcInt(crc, (int) (v >>> 32));
+        crcInt(crc, (int) v);
+    }
+
+    /** @return a one-line summary of the layer's activity */
+    public synchronized String getStats() {
+        return units + " log units of " + blocksWritten + " blocks, "
+            + segmentsCleaned + " segments cleaned (" + blocksCopied
+            + " blocks copied), " + free.size() + " of " + segments
+            + " segments free";
+    }
+}
@@ -0,0 +1,253 @@
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+import java.util.function.LongSupplier;
+
+/**
+ * A registry of the kernel's metrics.
+ * <p>
+ * There are three kinds: counters, which only go up (system calls made,
+ * time the disk has been busy); gauges, which are read only when a
+ * snapshot is taken (queue length, cache occupancy); and histograms,
+ * which count values in power-of-two buckets (disk request latency).
+ * Counters and histograms are LongAdders and atomic arrays, and gauges
+ * cost nothing until read, so the registry is cheap enough to leave on.
+ * Disk I/O is also counted per process.
+ * <p>
+ * snapshot() renders everything as one JSON object, which the kernel
+ * appends to a file every so often (one line per snapshot), and
+ * report() renders it as lines of text for SYSCALL_GET_METRICS.
+ *
+ * @see Kernel
+ */
+public class Metrics {
+    /** A histogram with a bucket for each power of two. */
+    public static class Histogram {
+        private AtomicLongArray buckets = new AtomicLongArray(64);
+        private LongAdder count = new LongAdder();
+        private LongAdder sum = new LongAdder();
+
+        /** Records one value.
+         * @param value a value, at least zero.
+         */
+        public void record(long value) {
+            buckets.incrementAndGet(64 - Long.numberOfLeadingZeros(value));
+            count.increment();
+            sum.add(value);
+        }
+
+        /** Estimates a percentile, as the top of the bucket it falls in.
+         * @param p the percentile, from 0 to 100.
+         * @return the estimate, or zero if nothing has been recorded.
+         */
+        public long percentile(double p) {
+            long n = count.sum();
+            long seen = 0;
+            for (int i = 0; i < 64; i++) {
+                seen += buckets.get(i);
+                if (seen > 0 && seen >= n * p / 100) {
+                    return i == 0 ? 0 : (1L << i) - 1;
+                }
+            }
+            return 0;
+        }
+
+        /** @return the number of values recorded. */
+        public long getCount() {
+            return count.sum();
+        }
+
+        /** @return the sum of the values recorded. */
+        public long getSum() {
+            return sum.sum();
+        }
+    } // Histogram
+
+    private ConcurrentHashMap<String, LongAdder> counters
+        = new ConcurrentHashMap<String, LongAdder>();
+    private ConcurrentHashMap<String, LongSupplier> gauges
+        = new ConcurrentHashMap<String, LongSupplier>();
+    private ConcurrentHashMap<String, Histogram> histograms
+        = new ConcurrentHashMap<String, Histogram>();
+
+    /** Operations and bytes of disk I/O, by process id */
+    private ConcurrentHashMap<Integer, LongAdder[]> processes
+        = new ConcurrentHashMap<Integer, LongAdder[]>();
+
+    /** Returns a counter, creating it if need be.
+     * Callers on a hot path should look it up once and keep it.
+     * @param name the counter's name.
+     * @return the counter.
+     */
+    public LongAdder counter(String name) {
+        LongAdder c = counters.get(name);
+        if (c == null) {
+            counters.putIfAbsent(name, new LongAdder());
+            c = counters.get(name);
+        }
+        return c;
+    }
+
+    /** Registers a gauge.
+     * @param name the gauge's name.
+     * @param value reads the gauge; it is called for every snapshot.
+     */
+    public void gauge(String name, LongSupplier value) {
+        gauges.put(name, value);
+    }
+
+    /** Returns a histogram, creating it if need be.
+     * @param name the histogram's name.
+     * @return the histogram.
+     */
+    public Histogram histogram(String name) {
+        Histogram h = histograms.get(name);
+        if (h == null) {
+            histograms.putIfAbsent(name, new Histogram());
+            h = histograms.get(name);
+        }
+        return h;
+    }
+
+    /** Counts one disk operation by a process.
+     * @param pid the process id.
+     * @param bytes the number of bytes transferred.
+     */
+    public void recordIo(Integer pid, int bytes) {
+        LongAdder[] io = processes.get(pid);
+        if (io == null) {
+            processes.putIfAbsent(pid,
+                new LongAdder[] { new LongAdder(), new LongAdder() });
+            io = processes.get(pid);
+        }
+        io[0].increment();
+        io[1].add(bytes);
+    }
+
+    /** Forgets a process that has ended.
+     * @param pid the process id.
+     */
+    public void removeProcess(int pid) {
+        processes.remove(pid);
+    }
+
+    /** Renders every metric as one line of JSON.
+     * @return the line, without a newline.
+     */
+    public String snapshot() {
+        StringBuffer sb = new StringBuffer();
+        sb.append("{\"time\":").append(System.currentTimeMillis());
+        sb.append(",\"counters\":{");
+        String sep = "";
+        for (Map.Entry<String, LongAdder> e
+                 : new TreeMap<String, LongAdder>(counters).entrySet()) {
+            sb.append(sep).append('"').append(e.getKey()).append("\":")
+                .append(e.getValue().sum());
+            sep = ",";
+        }
+        sb.append("},\"gauges\":{");
+        sep = "";
+        for (Map.Entry<String, LongSupplier> e
+                 : new TreeMap<String, LongSupplier>(gauges).entrySet()) {
+            sb.append(sep).append('"').append(e.getKey()).append("\":")
+                .append(e.getValue().getAsLong());
+            sep = ",";
+        }
+        sb.append("},\"histograms\":{");
+        sep = "";
+        for (Map.Entry<String, Histogram> e
+                 : new TreeMap<String, Histogram>(histograms).entrySet()) {
+            Histogram h = e.getValue();
+            sb.append(sep).append('"').append(e.getKey()).append("\":{")
+                .append("\"count\":").append(h.getCount())
+                .append(",\"sum\":").append(h.getSum())
+                .append(",\"p50\":").append(h.percentile(50))
+                .append(",\"p99\":").append(h.percentile(99)).append('}');
+            sep = ",";
+        }
+        sb.append("},\"processes\":{");
+        sep = "";
+        for (Map.Entry<Integer, LongAdder[]> e
+                 : new TreeMap<Integer, LongAdder[]>(processes).entrySet()) {
+            sb.append(sep).append('"').append(e.getKey()).append("\":{")
+                .append("\"ops\":").append(e.getValue()[0].sum())
+                .append(",\"bytes\":").append(e.getValue()[1].sum())
+                .append('}');
+            sep = ",";
+        }
+        sb.append("}}");
+        return sb.toString();
+    } // snapshot
+
+    /** Renders every metric as lines of text, one per metric:
+     * <pre>
+     *    counter <i>name</i> <i>value</i>
+     *    gauge <i>name</i> <i>value</i>
+     *    histogram <i>name</i> <i>count</i> <i>sum</i> <i>p50</i> <i>p99</i>
+     *    process <i>pid</i> <i>ops</i> <i>bytes</i>
+     * </pre>
+     * @param sb where to put the lines.
+     */
+    public void report(StringBuffer sb) {
+        for (Map.Entry<String, LongAdder> e
+                 : new TreeMap<String, LongAdder>(counters).entrySet()) {
+            sb.append("counter ").append(e.getKey()).append(' ')
+                .append(e.getValue().sum()).append('\n');
+        }
+        for (Map.Entry<String, LongSupplier> e
+                 : new TreeMap<String, LongSupplier>(gauges).entrySet()) {
+            sb.append("gauge ").append(e.getKey()).append(' ')
+                .append(e.getValue().getAsLong()).append('\n');
+        }
+        for (Map.Entry<String, Histogram> e
+                 : new TreeMap<String, Histogram>(histograms).entrySet()) {
+            Histogram h = e.getValue();
+            sb.append("histogram ").append(e.getKey()).append(' ')
+                .append(h.getCount()).append(' ').append(h.getSum())
+                .append(' ').append(h.percentile(50)).append(' ')
+                .append(h.percentile(99)).append('\n');
+        }
+        for (Map.Entry<Integer, LongAdder[]> e
+                 : new TreeMap<Integer, LongAdder[]>(processes).entrySet()) {
+            sb.append("process ").append(e.getKey()).append(' ')
+                .append(e.getValue()[0].sum()).append(' ')
+                .append(e.getValue()[1].sum()).append('\n');
+        }
+    } // report
+
+    /** Starts a daemon thread that appends a snapshot to a file
+     * periodically.
+     * @param fileName the file.
+     * @param interval how often (ms).
+     */
+    public void startWriter(final String fileName, final int interval) {
+        Thread t = new Thread("METRICS") {
+            public void run() {
+                for (;;) {
+                    try {
+                        Thread.sleep(interval);
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                    writeSnapshot(fileName);
+                }
+            }
+        };
+        t.setDaemon(true);
+        t.start();
+    } // startWriter
+
+    /** Appends a snapshot to a file.
+     * @param fileName the file.
+     */
+    public synchronized void writeSnapshot(String fileName) {
+        try {
+            FileWriter w = new FileWriter(fileName, true);
+            w.write(snapshot() + "\n");
+            w.close();
+        } catch (IOException e) {
+            System.out.println("Metrics: " + e);
+        }
+    } // writeSnapshot
+} // Metrics
@@ -0,0 +1,14 @@
+/**
+ * Makes a new, empty file system on the disk, destroying whatever is on
+ * it.  Files cannot be opened on a new disk until this has been run.
+ */
+public class Mkfs {
+    public static void main(String[] args) {
+        int rc = Library.format();
+        if (rc < 0) {
+            Library.output("Mkfs: " + Library.errorMessage[-rc] + "\n");
+            return;
+        }
+        Library.output("Mkfs: made a new file system\n");
+    } // main
+} // Mkfs
@@ -0,0 +1,154 @@
+import java.nio.*;
+import java.util.*;
+
+/**
+ * OffHeapCache is the second level of the block cache
+ *   BufferPool keeps a small number of frames on the Java heap; blocks it
+ *   evicts are demoted to this much larger cache, whose slots live in
+ *   direct ByteBuffers outside the heap, so caching gigabytes of blocks
+ *   neither grows the heap nor lengthens garbage collection pauses.
+ *   The index is two int arrays, block to slot and slot to block, so it
+ *   costs the collector nothing either.
+ *   Slots are replaced by the clock algorithm: a hit sets a slot's
+ *   reference bit, and the hand gives referenced slots a second chance.
+ *   A hit copies the block back up to BufferPool but leaves it here too,
+ *   so demoting it again later costs no new slot.
+ *   Not thread safe; BufferPool calls it with its lock held.
+ *
+ * @see BufferPool
+ */
+public class OffHeapCache {
+    /** The most bytes in one direct buffer */
+    private static final int CHUNK_BYTES = 64 << 20;
+
+    private int blockSize;
+    private int slots;
+    private int slotsPerChunk;
+    private ByteBuffer[] chunks;
+    /** Slot of each block plus one, or zero if the block is not here */
+    private int[] slotOf;
+    /** Block in each slot, or -1 if the slot is empty */
+    private int[] blockIn;
+    /** Slots hit since the hand last passed them */
+    private BitSet referenced = new BitSet();
+    /** The next slot the clock hand will look at */
+    private int hand;
+    private long hits;
+    private long misses;
+    private long demotions;
+
+    /**
+     * Allocates the cache
+     *
+     * @param slots how many blocks it holds
+     * @param blockSize the size of a block in bytes
+     * @param blockCount the number of blocks on the device being cached
+     */
+    public OffHeapCache(int slots, int blockSize, int blockCount) {
+        this.slots = slots;
+        this.blockSize = blockSize;
+        slotsPerChunk = Math.max(1, CHUNK_BYTES / blockSize);
+        chunks = new ByteBuffer[(slots + slotsPerChunk - 1) / slotsPerChunk];
+        for (int i = 0; i < chunks.length; i++) {
+            int n = Math.min(slotsPerChunk, slots - i * slotsPerChunk);
+            chunks[i] = ByteBuffer.allocateDirect(n * blockSize);
+        }
+        slotOf = new int[blockCount];
+        blockIn = new int[slots];
+        Arrays.fill(blockIn, -1);
+    }
+
+    /**
+     * Checks whether a block is cached
+     *
+     * @param blockNum the block
+     * @return true if it is
+     */
+    public boolean contains(int blockNum) {
+        return slotOf[blockNum] != 0;
+    }
+
+    /**
+     * Copies a block out of the cache, if it is there
+     *
+     * @param blockNum the block
+     * @param dst where to put it
+     * @param offset where it starts in dst
+     * @return true on a hit
+     */
+    public boolean get(int blockNum, byte[] dst, int offset) {
+        int slot = slotOf[blockNum] - 1;
+        if (slot < 0) {
+            misses++;
+            return false;
+        }
+        hits++;
+        referenced.set(slot);
+        chunks[slot / slotsPerChunk].get((slot % slotsPerChunk) * blockSize,
+                                         dst, offset, blockSize);
+        return true;
+    }
+
+    /**
+     * Stores a block evicted from BufferPool, replacing whatever the clock
+     * hand picks if the block is not already here
+     *
+     * @param blockNum the block
+     * @param src its contents
+     * @param offset where it starts in src
+     */
+    public void put(int blockNum, byte[] src, int offset) {
+        demotions++;
+        int slot = slotOf[blockNum] - 1;
+        if (slot < 0) {
+            slot = victim();
+            if (blockIn[slot] >= 0) {
+                slotOf[blockIn[slot]] = 0;
+            }
+            blockIn[slot] = blockNum;
+            slotOf[blockNum] = slot + 1;
+            referenced.clear(slot);
+        }
+        chunks[slot / slotsPerChunk].put((slot % slotsPerChunk) * blockSize,
+                                         src, offset, blockSize);
+    }
+
+    /**
+     * Forgets a block, because a newer copy is in BufferPool
+     *
+     * @param blockNum the block
+     */
+    public void remove(int blockNum) {
+        int slot = slotOf[blockNum] - 1;
+        if (slot < 0) {
+            return;
+        }
+        slotOf[blockNum] = 0;
+        blockIn[slot] = -1;
+        referenced.clear(slot);
+    }
+
+    /** Advances the clock hand to a slot that is empty or has not been
+     * hit since the hand last passed it */
+    private int victim() {
+        for (;;) {
+            int slot = hand;
+            hand = (hand + 1) % slots;
+            if (blockIn[slot] < 0 || !referenced.get(slot)) {
+                return slot;
+            }
+            referenced.clear(slot);
+        }
+    }
+
+    /** @return the number of blocks the cache holds */
+    public int getCapacity() {
+        return slots;
+    }
+
+    /** @return a one-line summary of the cache's activity */
+    public String getStats() {
+        return "L2 cache of " + slots + " blocks: " + hits + " hits, "
+            + misses + " misses, " + demotions + " demotions";
+    }
+}
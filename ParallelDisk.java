@@ -0,0 +1,240 @@
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+/** A Disk that loads and saves its contents in parallel.
+ * <p>
+ * A plain Disk fills a new disk with junk in one serial loop, restores
+ * an old one with one big read, and saves it with one big write, so boot
+ * and shutdown take time proportional to the size of the disk on a
+ * single core.  A ParallelDisk keeps its blocks in chunks of CHUNK
+ * blocks and hands the chunks to a fork-join pool: each chunk is filled,
+ * read from the DISK file, or written to it with positional FileChannel
+ * transfers, independently of the others.  Since no one array holds the
+ * whole disk, it can also be bigger than 2GB.
+ * <p>
+ * Only chunks written since the last checkpoint are saved; on a new disk
+ * every chunk starts out unsaved.  Each chunk is copied under its lock
+ * before it is saved, so a block written during a checkpoint is saved
+ * whole, either then or at the next checkpoint.
+ *
+ * @see Disk
+ */
+public class ParallelDisk extends Disk {
+    /** The number of blocks in a chunk. */
+    protected static final int CHUNK = 4096;
+
+    /** The blocks, CHUNK to an array (the last may be shorter). */
+    private byte chunks[][];
+
+    /** Chunks written since the last checkpoint. */
+    private BitSet dirty = new BitSet();
+
+    /** The DISK file. */
+    private FileChannel channel;
+
+    /** Serializes checkpoints, so an older copy of a chunk is never
+     * written over a newer one. */
+    private Object checkpointLock = new Object();
+
+    /** Creates a new ParallelDisk.
+     * If a Unix file named DISK exists in the local Unix directory, the
+     * simulated disk contents are initialized from it; it is an error if
+     * its size does not match "size".  Otherwise the first block is
+     * cleared to nulls and the rest are filled with junk.
+     * @param size the total size of this disk, in blocks.
+     */
+    public ParallelDisk(int size) {
+        super(size, null);
+        File diskName = new File("DISK");
+        boolean fresh = !diskName.exists();
+        if (!fresh && diskName.length() != (long) size * BLOCK_SIZE) {
+            throw new DiskException(
+                "File DISK exists but is the wrong size");
+        }
+        int n = (size + CHUNK - 1) / CHUNK;
+        chunks = new byte[n][];
+        try {
+            RandomAccessFile f = new RandomAccessFile(diskName, "rw");
+            if (fresh) {
+                f.setLength((long) size * BLOCK_SIZE);
+            }
+            channel = f.getChannel();
+            ForkJoinPool.commonPool().invoke(
+                new ChunkTask(0, n, fresh ? ChunkTask.FILL : ChunkTask.LOAD, null));
+        } catch (IOException e) {
+            e.printStackTrace();
+            System.exit(1);
+        } catch (UncheckedIOException e) {
+            e.getCause().printStackTrace();
+            System.exit(1);
+        }
+        if (fresh) {
+            dirty.set(0, n);
+            System.out.println("Creating new disk");
+        } else {
+            System.out.println("Restored " + size + " blocks from file DISK");
+        }
+    } // constructor
+
+    /** Loads, fills, or saves a range of chunks, splitting it in half
+     * until each task has one chunk.
+     */
+    private class ChunkTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        static final int FILL = 0;
+        static final int LOAD = 1;
+        static final int SAVE = 2;
+
+        private int lo;
+        private int hi;
+        private int op;
+        /** The chunks to save, for SAVE */
+        private BitSet only;
+
+        ChunkTask(int lo, int hi, int op, BitSet only) {
+            this.lo = lo;
+            this.hi = hi;
+            this.op = op;
+            this.only = only;
+        }
+
+        protected void compute() {
+            if (hi - lo > 1) {
+                int mid = (lo + hi) >>> 1;
+                invokeAll(new ChunkTask(lo, mid, op, only),
+                          new ChunkTask(mid, hi, op, only));
+                return;
+            }
+            if (op == SAVE && !only.get(lo)) {
+                return;
+            }
+            try {
+                transfer(lo, op);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+    } // ChunkTask
+
+    /** Loads, fills, or saves one chunk.
+     * @param c the chunk.
+     * @param op ChunkTask.FILL, LOAD or SAVE.
+     */
+    private void transfer(int c, int op) throws IOException {
+        int blocks = Math.min(CHUNK, DISK_SIZE - c * CHUNK);
+        long pos = (long) c * CHUNK * BLOCK_SIZE;
+        if (op == ChunkTask.FILL) {
+            byte chunk[] = new byte[blocks * BLOCK_SIZE];
+            for (int i = c == 0 ? BLOCK_SIZE : 0; i < chunk.length; ) {
+                chunk[i++] = 74;
+                chunk[i++] = 85;
+                chunk[i++] = 78;
+                chunk[i++] = 75;
+            }
+            chunks[c] = chunk;
+        } else if (op == ChunkTask.LOAD) {
+            byte chunk[] = new byte[blocks * BLOCK_SIZE];
+            ByteBuffer bb = ByteBuffer.wrap(chunk);
+            while (bb.hasRemaining()) {
+                if (channel.read(bb, pos + bb.position()) < 0) {
+                    break;
+                }
+            }
+            chunks[c] = chunk;
+        } else {
+            byte chunk[];
+            synchronized (chunks[c]) {
+                chunk = chunks[c].clone();
+            }
+            ByteBuffer bb = ByteBuffer.wrap(chunk);
+            while (bb.hasRemaining()) {
+                channel.write(bb, pos + bb.position());
+            }
+        }
+    } // transfer
+
+    /////////////////////////////////////////// Data transfer
+
+    /** Copies one block into a buffer.
+     * @param blockNumber the block to read.
+     * @param buffer where to put the BLOCK_SIZE bytes read.
+     */
+    protected void readData(int blockNumber, byte buffer[]) {
+        System.arraycopy(
+            chunks[blockNumber / CHUNK], (blockNumber % CHUNK) * BLOCK_SIZE,
+            buffer, 0,
+            BLOCK_SIZE);
+    } // readData
+
+    /** Copies one block from a buffer onto the simulated platter.
+     * @param blockNumber the block to write.
+     * @param buffer the BLOCK_SIZE bytes to store.
+     */
+    protected void writeData(int blockNumber, byte buffer[]) {
+        byte chunk[] = chunks[blockNumber / CHUNK];
+        synchronized (chunk) {
+            System.arraycopy(
+                buffer, 0,
+                chunk, (blockNumber % CHUNK) * BLOCK_SIZE,
+                BLOCK_SIZE);
+        }
+        // Marked after the copy, so a checkpoint that has already copied
+        // the chunk leaves it for the next one
+        synchronized (dirty) {
+            dirty.set(blockNumber / CHUNK);
+        }
+    } // writeData
+
+    /////////////////////////////////////////// Saving
+
+    /** Writes every chunk changed since the last checkpoint to the DISK
+     * file, in parallel.
+     * @return the number of blocks written.
+     */
+    public int checkpoint() {
+        synchronized (checkpointLock) {
+            BitSet saving;
+            synchronized (dirty) {
+                saving = (BitSet) dirty.clone();
+                dirty.clear();
+            }
+            try {
+                ForkJoinPool.commonPool().invoke(
+                    new ChunkTask(0, chunks.length, ChunkTask.SAVE, saving));
+                channel.force(false);
+            } catch (IOException e) {
+                e.printStackTrace();
+                System.exit(1);
+            } catch (UncheckedIOException e) {
+                e.getCause().printStackTrace();
+                System.exit(1);
+            }
+            int written = 0;
+            for (int c = saving.nextSetBit(0); c >= 0;
+                 c = saving.nextSetBit(c + 1))
+            {
+                written += Math.min(CHUNK, DISK_SIZE - c * CHUNK);
+            }
+            return written;
+        }
+    } // checkpoint
+
+    /** Saves the changed chunks and prints some statistics. */
+    public void flush() {
+        System.out.println("Saving contents to DISK file...");
+        int n = checkpoint();
+        try {
+            channel.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        System.out.println(readCount + " read operations and "
+            + writeCount + " write operations performed");
+        System.out.println(n + " blocks saved by "
+            + ForkJoinPool.commonPool().getParallelism() + " threads");
+    } // flush
+} // ParallelDisk
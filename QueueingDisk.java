@@ -0,0 +1,271 @@
+import java.util.*;
+
+/** A Disk with an internal command queue and interrupt coalescing.
+ * <p>
+ * A plain Disk accepts one operation at a time and interrupts the CPU as
+ * soon as it is done.  A QueueingDisk accepts up to <tt>queueDepth</tt>
+ * outstanding operations and performs them in the order they arrive.
+ * When an operation completes, the controller posts a completion record
+ * to a ring buffer instead of interrupting right away.  A single
+ * INTERRUPT_DISK is raised when
+ * <ul>
+ * <li> <tt>batchSize</tt> completions have accumulated,
+ * <li> the oldest posted completion is more than <tt>batchTimeout</tt>
+ *      milliseconds old, or
+ * <li> the controller has nothing left to do.
+ * </ul>
+ * The timeout is checked each time an operation completes.
+ * The kernel is expected to collect every posted completion in one pass
+ * by calling drainCompletions().
+ * <p>
+ * Since Boot only passes the disk size, the other parameters come from
+ * the system properties <tt>disk.queueDepth</tt> (default 8),
+ * <tt>disk.batchSize</tt> (default 4) and <tt>disk.batchTimeout</tt>
+ * (default 5).  For example
+ * <pre>
+ *    java -Ddisk.batchSize=8 Boot 10 QueueingDisk 100 Shell
+ * </pre>
+ *
+ * @see Disk
+ * @see Elevator
+ */
+public class QueueingDisk extends Disk {
+    /** The maximum number of operations that may be outstanding. */
+    public final int queueDepth;
+
+    /** The number of completions that triggers an interrupt. */
+    public final int batchSize;
+
+    /** The age, in milliseconds, at which a posted completion triggers an
+     * interrupt even if the batch is not full.
+     */
+    public final long batchTimeout;
+
+    /** Operations accepted but not yet started, in arrival order. */
+    private LinkedList<Command> commands = new LinkedList<Command>();
+
+    /** Completions waiting to be collected by the kernel. */
+    private CompletionRing ring;
+
+    /** The time at which the oldest entry in the ring was posted. */
+    private long firstPosted;
+
+    /** A count of interrupts raised, for statistics. */
+    protected int interruptCount;
+
+    /////////////////////////////////////////// Inner classes
+
+    /** One operation accepted by the controller. */
+    private static class Command {
+        int blockNumber;
+        byte buffer[];
+        boolean isWriting;
+
+        Command(int blockNumber, byte buffer[], boolean isWriting) {
+            this.blockNumber = blockNumber;
+            this.buffer = buffer;
+            this.isWriting = isWriting;
+        }
+    } // Command
+
+    /** A fixed-size circular buffer of completion records.
+     * Each record is the block number and buffer of a finished operation.
+     */
+    private static class CompletionRing {
+        private int blocks[];
+        private byte buffers[][];
+        private int head = 0;
+        private int count = 0;
+
+        CompletionRing(int capacity) {
+            blocks = new int[capacity];
+            buffers = new byte[capacity][];
+        }
+
+        int size() {
+            return count;
+        }
+
+        void post(int blockNumber, byte buffer[]) {
+            if (count == blocks.length) {
+                throw new DiskException("Completion ring overflow");
+            }
+            int tail = (head + count) % blocks.length;
+            blocks[tail] = blockNumber;
+            buffers[tail] = buffer;
+            count++;
+        }
+
+        int drain(int blockOut[], byte bufferOut[][]) {
+            int n = Math.min(count, Math.min(blockOut.length, bufferOut.length));
+            for (int i = 0; i < n; i++) {
+                blockOut[i] = blocks[head];
+                bufferOut[i] = buffers[head];
+                buffers[head] = null;
+                head = (head + 1) % blocks.length;
+            }
+            count -= n;
+            return n;
+        }
+    } // CompletionRing
+
+    /////////////////////////////////////////// Constructors
+
+    /** Creates a new QueueingDisk using the parameters from the system
+     * properties.
+     * @param size the total size of this disk, in blocks.
+     */
+    public QueueingDisk(int size) {
+        this(size,
+            Integer.getInteger("disk.queueDepth", 8).intValue(),
+            Integer.getInteger("disk.batchSize", 4).intValue(),
+            Long.getLong("disk.batchTimeout", 5).longValue());
+    } // constructor
+
+    /** Creates a new QueueingDisk.
+     * @param size the total size of this disk, in blocks.
+     * @param queueDepth the maximum number of outstanding operations.
+     * @param batchSize the number of completions per interrupt.
+     * @param batchTimeout the maximum time, in milliseconds, a completion
+     *      waits for the rest of its batch.
+     */
+    public QueueingDisk(int size, int queueDepth, int batchSize,
+            long batchTimeout)
+    {
+        super(size);
+        if (queueDepth < 1 || batchSize < 1 || batchTimeout < 0) {
+            throw new DiskException("Bad queueing parameters");
+        }
+        this.queueDepth = queueDepth;
+        this.batchSize = Math.min(batchSize, queueDepth);
+        this.batchTimeout = batchTimeout;
+        ring = new CompletionRing(queueDepth);
+    } // constructor
+
+    /////////////////////////////////////////// Methods
+
+    /** Returns the number of operations this disk will accept at once.
+     * @return the queue depth.
+     */
+    public int getQueueDepth() {
+        return queueDepth;
+    } // getQueueDepth
+
+    /** Queues a new read operation.
+     * Unlike Disk.beginRead, this may be called while the disk is busy,
+     * as long as fewer than queueDepth operations are outstanding.
+     * @param blockNumber The block number to read from.
+     * @param buffer A data area to hold the data read.
+     */
+    public synchronized void beginRead(int blockNumber, byte buffer[]) {
+        submit(new Command(blockNumber, buffer, false));
+    } // beginRead
+
+    /** Queues a new write operation.
+     * @param blockNumber The block number to write to.
+     * @param buffer A data area containing the data to be written.
+     * @see #beginRead
+     */
+    public synchronized void beginWrite(int blockNumber, byte buffer[]) {
+        submit(new Command(blockNumber, buffer, true));
+    } // beginWrite
+
+    /** Checks and queues an operation.  The caller must hold the lock.
+     * @param c the operation.
+     */
+    private void submit(Command c) {
+        if (
+                c.blockNumber < 0
+                || c.blockNumber >= DISK_SIZE
+                || c.buffer == null
+                || c.buffer.length < BLOCK_SIZE)
+        {
+            throw new DiskException("Illegal disk "
+                        + (c.isWriting ? "write" : "read") + " request: "
+                        + " block number " + c.blockNumber
+                        + " buffer " + c.buffer);
+        }
+        int outstanding = commands.size() + ring.size() + (busy ? 1 : 0);
+        if (outstanding >= queueDepth) {
+            throw new DiskException("Disk request attempted "
+                        + " while the command queue was full.");
+        }
+        commands.add(c);
+        notify();
+    } // submit
+
+    /** Collects the completions posted since the last call.
+     * Completions are returned in the order the operations finished.
+     * @param blocks where to put the block numbers of finished operations.
+     * @param buffers where to put the buffers of finished operations.
+     * @return the number of completions collected.
+     */
+    public synchronized int drainCompletions(int blocks[], byte buffers[][]) {
+        return ring.drain(blocks, buffers);
+    } // drainCompletions
+
+    /** Saves the contents of this Disk and prints some statistics. */
+    public void flush() {
+        super.flush();
+        System.out.println(interruptCount + " interrupts raised");
+    } // flush
+
+    /** The controller loop.  Repeatedly takes the oldest queued operation,
+     * performs it, posts its completion, and interrupts the CPU if the
+     * current batch is ready.
+     * This method should <em>not</em> be called directly.
+     */
+    public void run() {
+        for (;;) {
+            Command c;
+            synchronized (this) {
+                while (commands.isEmpty()) {
+                    try {
+                        wait();
+                    } catch (Exception e) {
+                        e.printStackTrace();
+                    }
+                }
+                c = commands.removeFirst();
+                busy = true;
+                targetBlock = c.blockNumber;
+            }
+
+            // Pause to do the operation
+            delay(c.blockNumber);
+
+            // Move the data.
+            if (c.isWriting) {
+                writeData(c.blockNumber, c.buffer);
+                writeCount++;
+            } else {
+                readData(c.blockNumber, c.buffer);
+                readCount++;
+            }
+
+            // Post the completion and decide whether to interrupt
+            int pending;
+            synchronized (this) {
+                busy = false;
+                currentBlock = c.blockNumber;
+                long now = System.currentTimeMillis();
+                if (ring.size() == 0) {
+                    firstPosted = now;
+                }
+                ring.post(c.blockNumber, c.buffer);
+                pending = ring.size();
+                if (pending < batchSize
+                    && !commands.isEmpty()
+                    && now - firstPosted < batchTimeout)
+                {
+                    continue;
+                }
+            }
+            // As in Disk.finishOperation, the interrupt must be raised
+            // outside the critical section.
+            interruptCount++;
+            Kernel.interrupt(Kernel.INTERRUPT_DISK,
+                pending,0,null,null,null);
+        }
+    } // run
+} // QueueingDisk
@@ -1,5 +1,7 @@
 /**
  * Represents an IO request.
+ * A request covers an extent of <code>count</code> contiguous blocks,
+ * transferred to or from <code>data</code> starting at <code>offset</code>.
  *
  * @author <a href="mailto:bart@seamus-laptop">Bart Lantz</a>
  * @version 1.0
@@ -7,11 +9,22 @@
 public class Request {
     private boolean readRequest;
     private int blockNumber;
+    private int count;
     private byte[] data;
+    private int offset;
     private boolean finished;
+    private int priority = Kernel.IO_BEST_EFFORT;
+    private int pid;
+    private long queuedAt;
     public Request(int blockNumber, byte data[], boolean readRequest) {
+        this(blockNumber, 1, data, 0, readRequest);
+    }
+    public Request(int blockNumber, int count, byte data[], int offset,
+                   boolean readRequest) {
         this.blockNumber = blockNumber;
+        this.count       = count;
         this.data        = data;
+        this.offset      = offset;
         this.readRequest = readRequest;
         this.finished = false;
     }
@@ -19,9 +32,23 @@ public class Request {
         return blockNumber;
     }
     
+    /** Returns the number of contiguous blocks in this request
+     * @return block count
+     */
+    public int getCount() {
+        return count;
+    }
+
     public byte[] getData() {
         return data;
     }
+
+    /** Returns where this request's data starts in getData()
+     * @return byte offset
+     */
+    public int getOffset() {
+        return offset;
+    }
     
     /** Returns if request is a read request
      *
@@ -31,6 +58,48 @@ public class Request {
         return readRequest;
     }
     
+    /** Returns the I/O priority class of this request
+     * @return one of the Kernel.IO_XXX classes
+     */
+    public int getPriority() {
+        return priority;
+    }
+
+    /** Sets the I/O priority class of this request
+     * @param priority one of the Kernel.IO_XXX classes
+     */
+    public void setPriority(int priority) {
+        this.priority = priority;
+    }
+    
+    /** Returns the process that issued this request
+     * @return the process id, or zero for the kernel
+     */
+    public int getPid() {
+        return pid;
+    }
+
+    /** Sets the process that issued this request
+     * @param pid the process id
+     */
+    public void setPid(int pid) {
+        this.pid = pid;
+    }
+
+    /** Returns when this request was queued
+     * @return the time in ms
+     */
+    public long getQueuedAt() {
+        return queuedAt;
+    }
+
+    /** Sets when this request was queued
+     * @param queuedAt the time in ms
+     */
+    public void setQueuedAt(long queuedAt) {
+        this.queuedAt = queuedAt;
+    }
+
     /** Sets finished flag so process can return
      */
     public void setFinished() {
@@ -0,0 +1,18 @@
+/**
+ * Prints the statistics of the block checksums and the scrubber.
+ */
+public class Scrub {
+    public static void main(String[] args) {
+        long[] stats = new long[6];
+        int rc = Library.getChecksumStats(stats);
+        if (rc < 0) {
+            Library.output("Scrub: " + Library.errorMessage[-rc] + "\n");
+            return;
+        }
+        Library.output(stats[0] + " blocks verified on read, "
+                       + stats[1] + " errors\n"
+                       + stats[2] + " blocks scrubbed in " + stats[4]
+                       + " complete passes, " + stats[3] + " errors\n"
+                       + stats[5] + " blocks known bad\n");
+    } // main
+} // Scrub
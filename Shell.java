@@ -30,12 +30,18 @@ import java.util.*;
  *      Shell&gt; exit
  * </pre>
  * <p>
- * The Shell also has the following "built-in" commands.  Any arguments
- * are ignored.
+ * The Shell also has the following "built-in" commands.  Except for
+ * <b>iolimit</b> and <b>top</b>, any arguments are ignored.
  * <dl>
  * <dt><b>exit</b><dd>The Shell terminates immediately.
  * <dt><b>help</b><dd>The Shell prints a short help message.
  * <dt><b>?</b><dd>Equivalent to <b>help</b>.
+ * <dt><b>iolimit</b> [<i>pid</i>] <i>iops</i> <i>bytes/s</i><dd>Limits
+ * the disk I/O rate of process <i>pid</i>, or if it is omitted, of the
+ * commands the Shell runs from then on.  A limit of zero means no limit.
+ * <dt><b>top</b> [<i>seconds</i>]<dd>Shows the kernel's metrics, refreshed
+ * every second, for 10 seconds or as many as given.  Put it on a command
+ * line with the commands to watch.
  * </dl>
  * @see Kernel
  */
@@ -83,7 +89,11 @@ public class Shell {
         "The following commands are built in:",
         "    exit    terminate immediately",
         "    help    print this message",
-        "    ?       same as help"
+        "    ?       same as help",
+        "    iolimit [pid] iops bytes/s",
+        "            limit the disk I/O rate of a process, or of later commands",
+        "    top [seconds]",
+        "            show kernel metrics every second"
         };
 
     /** Parses and runs one command line.
@@ -97,6 +107,7 @@ public class Shell {
         int[] pids = new int[commandCount];
         int processes = 0;
         boolean done = false;
+        String topSeconds = null;
 
         while (st.hasMoreTokens()) {
             String command = st.nextToken().trim();
@@ -123,6 +134,14 @@ public class Shell {
             }
 
             String program = cst.nextToken();
+            if (program.equals("iolimit")) {
+                ioLimit(cst);
+                continue;
+            }
+            if (program.equals("top")) {
+                topSeconds = cst.hasMoreTokens() ? cst.nextToken() : "10";
+                continue;
+            }
             String[] progArgs = new String[cst.countTokens()];
             for (int i = 0; cst.hasMoreTokens(); ) {
                 progArgs[i++] = cst.nextToken();
@@ -137,6 +156,15 @@ public class Shell {
             }
         }
 
+        // top runs while the other commands do
+        if (topSeconds != null) {
+            try {
+                top(Integer.parseInt(topSeconds));
+            } catch (NumberFormatException e) {
+                Library.output("usage: top [seconds]\n");
+            }
+        }
+
         // Wait for all the processes to complete
         for (int i = 0; i < processes; i++) {
             if (Library.join(pids[i]) != 0) {
@@ -146,4 +174,142 @@ public class Shell {
         }
         return done;
     } // runCommandLine(StringBuffer)
+
+    /** Runs the iolimit built-in command.
+     * @param args the arguments: [pid] iops bytes/s.
+     */
+    private static void ioLimit(StringTokenizer args) {
+        long[] n = new long[args.countTokens()];
+        try {
+            for (int i = 0; i < n.length; i++) {
+                n[i] = Long.parseLong(args.nextToken());
+            }
+        } catch (NumberFormatException e) {
+            n = new long[0];
+        }
+        int rc;
+        if (n.length == 2) {
+            rc = Library.setIoLimit(0, n[0], n[1]);
+        } else if (n.length == 3) {
+            rc = Library.setIoLimit((int) n[0], n[1], n[2]);
+        } else {
+            Library.output("usage: iolimit [pid] iops bytes/s\n");
+            return;
+        }
+        if (rc < 0) {
+            Library.output("Shell: iolimit: " + Library.errorMessage[-rc]
+                + "\n");
+        }
+    } // ioLimit(StringTokenizer)
+
+    /** Runs the top built-in command: shows the kernel's metrics every
+     * second, with rates worked out from the previous second's.
+     * @param seconds how many times to refresh.
+     */
+    private static void top(int seconds) {
+        Map<String, long[]> prev = metrics();
+        long prevTime = Library.getTime();
+        for (int i = 1; i <= seconds; i++) {
+            try {
+                Thread.sleep(1000);
+            } catch (InterruptedException e) {
+                return;
+            }
+            Map<String, long[]> cur = metrics();
+            long time = Library.getTime();
+            double secs = Math.max(1, time - prevTime) / 1000.0;
+            StringBuffer sb = new StringBuffer("\033[H\033[2J");
+            sb.append("Kernel metrics (" + i + "/" + seconds + ")\n");
+            sb.append("disk:    "
+                + Math.round(rate(prev, cur, "counter disk.busy_us", secs)
+                             / 10000) + "% busy, "
+                + value(cur, "gauge elevator.queued", 0) + " queued, "
+                + value(cur, "gauge elevator.in_flight", 0) + " in flight, "
+                + "latency p50 "
+                + value(cur, "histogram disk.latency_us", 2) + "us p99 "
+                + value(cur, "histogram disk.latency_us", 3) + "us\n");
+            if (cur.containsKey("gauge cache.occupancy")) {
+                double hits = rate(prev, cur, "gauge cache.hits", secs);
+                double misses = rate(prev, cur, "gauge cache.misses", secs);
+                sb.append("cache:   " + value(cur, "gauge cache.occupancy", 0)
+                    + " blocks, "
+                    + (hits + misses == 0 ? 0
+                       : Math.round(100 * hits / (hits + misses)))
+                    + "% hits\n");
+            }
+            sb.append("syscalls/s:");
+            for (String key : cur.keySet()) {
+                if (key.startsWith("counter syscall.")) {
+                    long r = Math.round(rate(prev, cur, key, secs));
+                    if (r > 0) {
+                        sb.append(" " + key.substring(16) + " " + r);
+                    }
+                }
+            }
+            sb.append("\n  PID   OPS/S    KB/S\n");
+            for (String key : cur.keySet()) {
+                if (key.startsWith("process ")) {
+                    sb.append(pad(key.substring(8), 5)
+                        + pad("" + Math.round(rate(prev, cur, key, secs)), 8)
+                        + pad("" + Math.round(rate(prev, cur, key, 1, secs)
+                                              / 1024), 8)
+                        + "\n");
+                }
+            }
+            Library.output(sb.toString());
+            prev = cur;
+            prevTime = time;
+        }
+    } // top(int)
+
+    /** Gets the kernel's metrics.
+     * @return the values of each metric, keyed by its kind and name.
+     */
+    private static Map<String, long[]> metrics() {
+        StringBuffer sb = new StringBuffer();
+        Library.getMetrics(sb);
+        Map<String, long[]> m = new TreeMap<String, long[]>();
+        StringTokenizer lines = new StringTokenizer(sb.toString(), "\n");
+        while (lines.hasMoreTokens()) {
+            StringTokenizer st = new StringTokenizer(lines.nextToken());
+            String key = st.nextToken() + " " + st.nextToken();
+            long[] v = new long[st.countTokens()];
+            for (int i = 0; i < v.length; i++) {
+                v[i] = Long.parseLong(st.nextToken());
+            }
+            m.put(key, v);
+        }
+        return m;
+    } // metrics()
+
+    /** Returns one value of a metric, or zero if there is no such metric.
+     */
+    private static long value(Map<String, long[]> m, String key, int i) {
+        long[] v = m.get(key);
+        return v == null ? 0 : v[i];
+    } // value(Map, String, int)
+
+    /** Returns how fast the first value of a metric went up, per second.
+     */
+    private static double rate(Map<String, long[]> prev,
+                               Map<String, long[]> cur, String key,
+                               double secs) {
+        return rate(prev, cur, key, 0, secs);
+    } // rate(Map, Map, String, double)
+
+    /** Returns how fast one value of a metric went up, per second.
+     */
+    private static double rate(Map<String, long[]> prev,
+                               Map<String, long[]> cur, String key, int i,
+                               double secs) {
+        return (value(cur, key, i) - value(prev, key, i)) / secs;
+    } // rate(Map, Map, String, int, double)
+
+    /** Right-justifies a string in a field. */
+    private static String pad(String s, int width) {
+        while (s.length() < width) {
+            s = " " + s;
+        }
+        return s;
+    } // pad(String, int)
 } // class Shell
@@ -0,0 +1,40 @@
+/**
+ * Manages snapshots of the disk:
+ * <pre>
+ *    Snap create name
+ *    Snap list
+ *    Snap mount name
+ *    Snap delete name
+ * </pre>
+ * Once mounted, a snapshot's files are at /snapshots/<i>name</i>/...
+ */
+public class Snap {
+    public static void main(String[] args) {
+        if (args.length < 1 || (args.length < 2 && !args[0].equals("list"))) {
+            Library.output("usage: Snap create|list|mount|delete [name]\n");
+            return;
+        }
+        int rc;
+        if (args[0].equals("create")) {
+            rc = Library.createSnapshot(args[1]);
+            if (rc >= 0) {
+                Library.output("snapshot " + rc + " created\n");
+            }
+        } else if (args[0].equals("list")) {
+            StringBuffer sb = new StringBuffer();
+            rc = Library.listSnapshots(sb);
+            if (rc >= 0) {
+                Library.output(sb.toString());
+            }
+        } else if (args[0].equals("mount")) {
+            rc = Library.mountSnapshot(args[1]);
+        } else if (args[0].equals("delete")) {
+            rc = Library.deleteSnapshot(args[1]);
+        } else {
+            rc = Kernel.ERROR_BAD_ARGUMENT;
+        }
+        if (rc < 0) {
+            Library.output("Snap: " + Library.errorMessage[-rc] + "\n");
+        }
+    } // main
+} // Snap
@@ -0,0 +1,671 @@
+import java.nio.*;
+import java.util.*;
+import java.util.zip.CRC32;
+
+/** A block layer with copy-on-write snapshots.
+ * <p>
+ * Every logical block has a physical location and a <em>birth epoch</em>,
+ * the epoch in which it was last written.  Taking a snapshot just records
+ * the current epoch and starts a new one, so it costs the same however
+ * big the disk is.  A write to a block born at or before the epoch of
+ * some snapshot would change what that snapshot sees, so instead the
+ * block is written to a newly allocated physical block and the old
+ * version is kept in the block's history.  Other writes are done in
+ * place.  A snapshot taken at epoch E sees, for each block, the newest
+ * version born at or before E.
+ * <p>
+ * Deleting a snapshot frees every old version that no remaining snapshot
+ * can see.
+ * <p>
+ * <b>Layout.</b>  The disk starts with two metadata regions, each a
+ * header block (the list of snapshots and the current epoch) followed by
+ * the mapping table and the histories.  The rest is data: at first each
+ * logical block lives at the same offset in the data area, and
+ * <tt>reserve</tt> percent of it is kept back for copies.
+ * <p>
+ * flush() (called by SYSCALL_CHECKPOINT and at shutdown) writes the
+ * tables to the older region, then its header.  Creating or deleting a
+ * snapshot rewrites only the newest header.  Blocks freed since the last
+ * flush are not reused until the next one, so the saved tables never
+ * point at blocks that have been overwritten.
+ *
+ * @see Kernel
+ */
+public class Snapshots implements BlockDevice {
+    /** Magic number of a metadata header ("SNAP"). */
+    private static final int MAGIC = 0x534e4150;
+
+    /** The size of a header's fixed part. */
+    private static final int HEADER = 48;
+
+    /** The size of one snapshot's entry in the header. */
+    private static final int ENTRY = 32;
+
+    /** The longest snapshot name, in bytes. */
+    public static final int NAME_LENGTH = ENTRY - 8;
+
+    /** A snapshot. */
+    static class Snapshot {
+        int id;
+        int epoch;
+        String name;
+
+        Snapshot(int id, int epoch, String name) {
+            this.id = id;
+            this.epoch = epoch;
+            this.name = name;
+        }
+    } // Snapshot
+
+    private BlockDevice lower;
+    private int blockSize;
+
+    /** The number of logical blocks. */
+    private int logical;
+
+    /** The number of blocks in each metadata region, header included. */
+    private int regionBlocks;
+
+    /** The first block of the data area. */
+    private int dataStart;
+
+    /** The number of blocks in the data area. */
+    private int dataBlocks;
+
+    /** The most snapshots there can be. */
+    private int maxSnapshots;
+
+    /** Each logical block's physical block and birth epoch. */
+    private int[] phys;
+    private int[] birth;
+
+    /** Older versions still seen by some snapshot: logical block to a
+     * list of {birth, physical}, oldest first.
+     */
+    private HashMap<Integer, ArrayList<int[]>> history
+        = new HashMap<Integer, ArrayList<int[]>>();
+
+    /** The number of versions in history. */
+    private int historyCount;
+
+    /** The number of versions in the tables last saved, which is what a
+     * header describes; create and delete rewrite the header without
+     * the tables. */
+    private int savedHistoryCount;
+
+    /** Snapshots by id. */
+    private TreeMap<Integer, Snapshot> snapshots
+        = new TreeMap<Integer, Snapshot>();
+
+    /** The epochs of the snapshots. */
+    private TreeSet<Integer> epochs = new TreeSet<Integer>();
+
+    /** The current epoch. */
+    private int epoch;
+
+    /** The id of the next snapshot. */
+    private int nextId;
+
+    /** Data blocks in use, by offset in the data area. */
+    private BitSet used = new BitSet();
+
+    /** Data blocks freed since the last flush. */
+    private ArrayList<Integer> released = new ArrayList<Integer>();
+
+    /** Logical blocks being copied. */
+    private HashSet<Integer> busy = new HashSet<Integer>();
+
+    /** The number of flushes ever done, and the region holding the last. */
+    private long flushSeq;
+    private int currentRegion;
+
+    /** CRC of the tables in the current region. */
+    private long tableCrc;
+
+    /** Statistics. */
+    private long copies;
+
+    /** Creates a snapshot layer on top of a device.
+     * Call load() before using it.
+     * @param lower the device.
+     * @param reserve the percentage of the data area kept for copies.
+     */
+    public Snapshots(BlockDevice lower, int reserve) {
+        this.lower = lower;
+        blockSize = lower.getBlockSize();
+        int physical = lower.getBlockCount();
+        regionBlocks = 1 + (int) (((long) physical * 12 + blockSize - 1)
+                                  / blockSize);
+        dataStart = 2 * regionBlocks;
+        dataBlocks = physical - dataStart;
+        logical = (int) ((long) dataBlocks * (100 - reserve) / 100);
+        maxSnapshots = (blockSize - HEADER) / ENTRY;
+        if (reserve < 1 || reserve > 90 || logical < 1 || maxSnapshots < 1) {
+            throw new IllegalArgumentException("disk too small for snapshots");
+        }
+        phys = new int[logical];
+        birth = new int[logical];
+    } // constructor
+
+    /////////////////////////////////////////// BlockDevice
+
+    public int read(int blockNum, byte[] data) {
+        int p;
+        synchronized (this) {
+            p = phys[blockNum];
+        }
+        return lower.read(p, data);
+    }
+
+    public int write(int blockNum, byte[] data) {
+        return writeBlocks(blockNum, 1, data);
+    }
+
+    public int readExtent(int blockNum, int count, byte[] data) {
+        int[] p = new int[count];
+        synchronized (this) {
+            System.arraycopy(phys, blockNum, p, 0, count);
+        }
+        return readRuns(p, data);
+    }
+
+    public int writeExtent(int blockNum, int count, byte[] data) {
+        return writeBlocks(blockNum, count, data);
+    }
+
+    public int getBlockSize() {
+        return blockSize;
+    }
+
+    public int getBlockCount() {
+        return logical;
+    }
+
+    /** Saves the tables.
+     * @return zero or an error code
+     */
+    public int flush() {
+        synchronized (this) {
+            saveTables();
+            for (int p : released) {
+                used.clear(p - dataStart);
+            }
+            released.clear();
+        }
+        return lower.flush();
+    }
+
+    /////////////////////////////////////////// I/O
+
+    /** Reads physical blocks into a buffer, with one operation for each
+     * contiguous run.
+     */
+    private int readRuns(int[] p, byte[] data) {
+        int count = p.length;
+        int i = 0;
+        while (i < count) {
+            int j = i + 1;
+            while (j < count && p[j] == p[j - 1] + 1) {
+                j++;
+            }
+            int rc;
+            if (i == 0 && j == count) {
+                rc = lower.readExtent(p[0], count, data);
+            } else {
+                byte[] run = new byte[(j - i) * blockSize];
+                rc = lower.readExtent(p[i], j - i, run);
+                System.arraycopy(run, 0, data, i * blockSize, run.length);
+            }
+            if (rc < 0) {
+                return rc;
+            }
+            i = j;
+        }
+        return 0;
+    }
+
+    /** Writes blocks, copying any that a snapshot still sees.
+     * @return zero, ERROR_NO_SPACE if there is no room for a copy, or an
+     *      error code from the device below
+     */
+    private int writeBlocks(int blockNum, int count, byte[] data) {
+        int[] target = new int[count];
+        boolean[] copy = new boolean[count];
+        synchronized (this) {
+            for (;;) {
+                boolean clash = false;
+                for (int i = 0; i < count && !clash; i++) {
+                    clash = busy.contains(blockNum + i);
+                }
+                if (!clash) {
+                    break;
+                }
+                try {
+                    wait();
+                } catch (InterruptedException e) {
+                    e.printStackTrace();
+                }
+            }
+            for (int i = 0; i < count; i++) {
+                int b = blockNum + i;
+                if (epochs.ceiling(birth[b]) == null) {
+                    birth[b] = epoch;
+                    target[i] = phys[b];
+                    continue;
+                }
+                int p = allocate(phys[b]);
+                if (p < 0) {
+                    for (int j = 0; j < i; j++) {
+                        if (copy[j]) {
+                            used.clear(target[j] - dataStart);
+                            busy.remove(blockNum + j);
+                        }
+                    }
+                    notifyAll();
+                    return Kernel.ERROR_NO_SPACE;
+                }
+                target[i] = p;
+                copy[i] = true;
+                busy.add(b);
+            }
+        }
+        int rc = 0;
+        int i = 0;
+        while (i < count && rc >= 0) {
+            int j = i + 1;
+            while (j < count && target[j] == target[j - 1] + 1) {
+                j++;
+            }
+            if (i == 0 && j == count) {
+                rc = lower.writeExtent(target[0], count, data);
+            } else {
+                rc = lower.writeExtent(target[i], j - i,
+                    Arrays.copyOfRange(data, i * blockSize, j * blockSize));
+            }
+            i = j;
+        }
+        synchronized (this) {
+            for (i = 0; i < count; i++) {
+                if (!copy[i]) {
+                    continue;
+                }
+                int b = blockNum + i;
+                if (rc < 0) {
+                    used.clear(target[i] - dataStart);
+                } else {
+                    retire(b, birth[b], phys[b], epoch);
+                    phys[b] = target[i];
+                    birth[b] = epoch;
+                    copies++;
+                }
+                busy.remove(b);
+            }
+            notifyAll();
+        }
+        return rc;
+    }
+
+    /** Allocates a data block, close to a given one if possible.
+     * Caller must hold the lock.
+     * @return the physical block, or -1 if the data area is full
+     */
+    private int allocate(int near) {
+        int i = used.nextClearBit(Math.max(0, near - dataStart));
+        if (i >= dataBlocks) {
+            i = used.nextClearBit(0);
+            if (i >= dataBlocks) {
+                return -1;
+            }
+        }
+        used.set(i);
+        return dataStart + i;
+    }
+
+    /** Replaces a version of a block, keeping it in the history if some
+     * snapshot sees it and freeing it otherwise.  Caller must hold the lock.
+     * @param b the logical block
+     * @param born the version's birth epoch
+     * @param p its physical block
+     * @param until the birth epoch of the version replacing it
+     */
+    private void retire(int b, int born, int p, int until) {
+        Integer seen = epochs.ceiling(born);
+        if (seen != null && seen < until) {
+            ArrayList<int[]> h = history.get(b);
+            if (h == null) {
+                h = new ArrayList<int[]>();
+                history.put(b, h);
+            }
+            h.add(new int[] { born, p });
+            historyCount++;
+        } else {
+            released.add(p);
+        }
+    }
+
+    /////////////////////////////////////////// Snapshots
+
+    /** Takes a snapshot of the whole device.
+     * @param name a name for it, unique and at most NAME_LENGTH bytes.
+     * @return the snapshot's id, ERROR_BAD_ARGUMENT if the name is in use
+     *      or too long, or ERROR_NO_SPACE if there are too many snapshots
+     */
+    public synchronized int create(String name) {
+        if (name == null || name.length() == 0
+            || encode(name).length > NAME_LENGTH || find(name) != null)
+        {
+            return Kernel.ERROR_BAD_ARGUMENT;
+        }
+        if (snapshots.size() >= maxSnapshots) {
+            return Kernel.ERROR_NO_SPACE;
+        }
+        Snapshot s = new Snapshot(nextId++, epoch++, name);
+        snapshots.put(s.id, s);
+        epochs.add(s.epoch);
+        saveHeader(currentRegion);
+        return s.id;
+    } // create
+
+    /** Deletes a snapshot and frees the versions only it could see.
+     * @param name the snapshot's name.
+     * @return zero or ERROR_NO_SUCH_FILE
+     */
+    public synchronized int delete(String name) {
+        Snapshot s = find(name);
+        if (s == null) {
+            return Kernel.ERROR_NO_SUCH_FILE;
+        }
+        snapshots.remove(s.id);
+        epochs.remove(s.epoch);
+        collect();
+        saveHeader(currentRegion);
+        return 0;
+    } // delete
+
+    /** Lists the snapshots, one per line: id, epoch and name.
+     * @param result where to put the list.
+     * @return the number of snapshots
+     */
+    public synchronized int list(StringBuffer result) {
+        for (Snapshot s : snapshots.values()) {
+            result.append(s.id).append(' ').append(s.epoch).append(' ')
+                .append(s.name).append('\n');
+        }
+        return snapshots.size();
+    } // list
+
+    /** Returns a read-only view of a snapshot.
+     * @param name the snapshot's name.
+     * @return the view, or null if there is no such snapshot
+     */
+    public synchronized BlockDevice open(String name) {
+        Snapshot s = find(name);
+        return (s == null) ? null : new View(s);
+    } // open
+
+    /** Caller must hold the lock. */
+    private Snapshot find(String name) {
+        for (Snapshot s : snapshots.values()) {
+            if (s.name.equals(name)) {
+                return s;
+            }
+        }
+        return null;
+    } // find
+
+    /** Drops every old version no snapshot sees.
+     * Caller must hold the lock.
+     */
+    private void collect() {
+        Iterator<Map.Entry<Integer, ArrayList<int[]>>> it
+            = history.entrySet().iterator();
+        while (it.hasNext()) {
+            Map.Entry<Integer, ArrayList<int[]>> e = it.next();
+            ArrayList<int[]> h = e.getValue();
+            for (int i = h.size() - 1; i >= 0; i--) {
+                int until = (i + 1 < h.size()) ? h.get(i + 1)[0]
+                                               : birth[e.getKey()];
+                Integer seen = epochs.ceiling(h.get(i)[0]);
+                if (seen == null || seen >= until) {
+                    released.add(h.get(i)[1]);
+                    h.remove(i);
+                    historyCount--;
+                }
+            }
+            if (h.isEmpty()) {
+                it.remove();
+            }
+        }
+    } // collect
+
+    /** Finds the physical block a snapshot sees.  Caller must hold the
+     * lock.
+     */
+    private int resolve(int b, int at) {
+        if (birth[b] <= at) {
+            return phys[b];
+        }
+        ArrayList<int[]> h = history.get(b);
+        for (int i = h.size() - 1; i >= 0; i--) {
+            if (h.get(i)[0] <= at) {
+                return h.get(i)[1];
+            }
+        }
+        throw new IllegalStateException("no version of block " + b);
+    } // resolve
+
+    /** A read-only view of a snapshot. */
+    class View implements BlockDevice {
+        private Snapshot snap;
+
+        View(Snapshot snap) {
+            this.snap = snap;
+        }
+
+        public int read(int blockNum, byte[] data) {
+            return readExtent(blockNum, 1, data);
+        }
+
+        public int readExtent(int blockNum, int count, byte[] data) {
+            int[] p = new int[count];
+            synchronized (Snapshots.this) {
+                if (!snapshots.containsKey(snap.id)) {
+                    return Kernel.ERROR_NO_SUCH_FILE;
+                }
+                for (int i = 0; i < count; i++) {
+                    p[i] = resolve(blockNum + i, snap.epoch);
+                }
+            }
+            return readRuns(p, data);
+        }
+
+        public int write(int blockNum, byte[] data) {
+            return Kernel.ERROR_BAD_ARGUMENT;
+        }
+
+        public int writeExtent(int blockNum, int count, byte[] data) {
+            return Kernel.ERROR_BAD_ARGUMENT;
+        }
+
+        public int getBlockSize() {
+            return blockSize;
+        }
+
+        public int getBlockCount() {
+            return logical;
+        }
+
+        public int flush() {
+            return 0;
+        }
+    } // View
+
+    /////////////////////////////////////////// Metadata
+
+    private static byte[] encode(String s) {
+        try {
+            return s.getBytes("UTF-8");
+        } catch (java.io.UnsupportedEncodingException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    private static String decode(byte[] b, int len) {
+        try {
+            return new String(b, 0, len, "UTF-8");
+        } catch (java.io.UnsupportedEncodingException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /** Writes the tables to the older region, then its header.
+     * Caller must hold the lock.
+     */
+    private void saveTables() {
+        byte[] table = new byte[(regionBlocks - 1) * blockSize];
+        ByteBuffer bb = ByteBuffer.wrap(table);
+        for (int b = 0; b < logical; b++) {
+            bb.putInt(phys[b]).putInt(birth[b]);
+        }
+        for (Map.Entry<Integer, ArrayList<int[]>> e : history.entrySet()) {
+            for (int[] v : e.getValue()) {
+                bb.putInt(e.getKey()).putInt(v[0]).putInt(v[1]);
+            }
+        }
+        CRC32 crc = new CRC32();
+        crc.update(table, 0, table.length);
+        tableCrc = crc.getValue();
+        savedHistoryCount = historyCount;
+        flushSeq++;
+        currentRegion = (flushSeq % 2 == 0) ? 0 : regionBlocks;
+        lower.writeExtent(currentRegion + 1, regionBlocks - 1, table);
+        saveHeader(currentRegion);
+    } // saveTables
+
+    /** Writes a header describing the tables in a region.
+     * Caller must hold the lock.
+     */
+    private void saveHeader(int region) {
+        byte[] header = new byte[blockSize];
+        ByteBuffer bb = ByteBuffer.wrap(header);
+        bb.putInt(MAGIC).putLong(flushSeq).putInt(logical).putInt(epoch)
+            .putInt(nextId).putInt(savedHistoryCount).putLong(tableCrc)
+            .putInt(snapshots.size());
+        int i = 0;
+        for (Snapshot s : snapshots.values()) {
+            bb.position(HEADER + ENTRY * i++);
+            bb.putInt(s.id).putInt(s.epoch).put(encode(s.name));
+        }
+        CRC32 crc = new CRC32();
+        crc.update(header, 0, blockSize - 8);
+        bb.putLong(blockSize - 8, crc.getValue());
+        lower.write(region, header);
+    } // saveHeader
+
+    /** Loads the newest valid metadata, or starts empty if there is none.
+     * Called once, at power on.
+     * @return the number of snapshots
+     */
+    public synchronized int load() {
+        long best = 0;
+        for (int region : new int[] { 0, regionBlocks }) {
+            byte[] header = new byte[blockSize];
+            lower.read(region, header);
+            ByteBuffer bb = ByteBuffer.wrap(header);
+            CRC32 crc = new CRC32();
+            crc.update(header, 0, blockSize - 8);
+            if (bb.getInt() != MAGIC
+                || bb.getLong(blockSize - 8) != crc.getValue())
+            {
+                continue;
+            }
+            long seq = bb.getLong();
+            if (seq <= best || bb.getInt() != logical) {
+                continue;
+            }
+            byte[] table = new byte[(regionBlocks - 1) * blockSize];
+            lower.readExtent(region + 1, regionBlocks - 1, table);
+            crc.reset();
+            crc.update(table, 0, table.length);
+            int ep = bb.getInt();
+            int next = bb.getInt();
+            int count = bb.getInt();
+            if (bb.getLong() != crc.getValue()) {
+                continue;
+            }
+            best = seq;
+            flushSeq = seq;
+            currentRegion = region;
+            tableCrc = crc.getValue();
+            epoch = ep;
+            nextId = next;
+            int n = bb.getInt();
+            snapshots.clear();
+            epochs.clear();
+            for (int i = 0; i < n && i < maxSnapshots; i++) {
+                bb.position(HEADER + i * ENTRY);
+                int id = bb.getInt();
+                int e = bb.getInt();
+                byte[] name = new byte[NAME_LENGTH];
+                bb.get(name);
+                int len = 0;
+                while (len < NAME_LENGTH && name[len] != 0) {
+                    len++;
+                }
+                snapshots.put(id, new Snapshot(id, e, decode(name, len)));
+                epochs.add(e);
+            }
+            ByteBuffer tb = ByteBuffer.wrap(table);
+            for (int b = 0; b < logical; b++) {
+                phys[b] = tb.getInt();
+                birth[b] = tb.getInt();
+            }
+            history.clear();
+            historyCount = 0;
+            for (int i = 0; i < count && tb.remaining() >= 12; i++) {
+                int b = tb.getInt();
+                int[] v = new int[] { tb.getInt(), tb.getInt() };
+                if (b < 0 || b >= logical || v[1] < dataStart
+                    || v[1] >= dataStart + dataBlocks)
+                {
+                    // Not a version this layer could have saved
+                    continue;
+                }
+                ArrayList<int[]> h = history.get(b);
+                if (h == null) {
+                    h = new ArrayList<int[]>();
+                    history.put(b, h);
+                }
+                h.add(v);
+                historyCount++;
+            }
+        }
+        if (best == 0) {
+            for (int b = 0; b < logical; b++) {
+                phys[b] = dataStart + b;
+            }
+            Arrays.fill(birth, 0);
+            epoch = 1;
+            nextId = 1;
+        }
+        collect();
+        used.clear();
+        for (int b = 0; b < logical; b++) {
+            used.set(phys[b] - dataStart);
+        }
+        for (ArrayList<int[]> h : history.values()) {
+            for (int[] v : h) {
+                used.set(v[1] - dataStart);
+            }
+        }
+        released.clear();
+        saveTables();
+        return snapshots.size();
+    } // load
+
+    /** @return a one-line summary of the layer's activity */
+    public synchronized String getStats() {
+        return snapshots.size() + " snapshots, " + historyCount
+            + " old versions, " + copies + " blocks copied on write";
+    }
+}
@@ -0,0 +1,351 @@
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.util.*;
+
+/** A LazyDisk saved in a sparse, compressed image file.
+ * <p>
+ * A plain Disk saves every byte of every block, although most of a new
+ * disk is zeros or junk.  A SparseDisk saves its contents in the file
+ * DISK.sparse, which holds only the blocks that differ from what a new
+ * disk would contain:
+ * <ul>
+ * <li> Blocks that have never been written, and blocks written back with
+ *      their original contents, are not saved at all.
+ * <li> Blocks with every byte the same are saved as a single byte in the
+ *      index.
+ * <li> Other blocks are compressed with BlockCodec if that makes them
+ *      smaller and stored raw otherwise.
+ * </ul>
+ * The file starts with a header (magic number, version, block size, disk
+ * size, index offset and entry count), followed by the saved blocks and
+ * then an index with one entry per saved block, in block order.
+ * <p>
+ * Blocks are faulted in from the image as they are used, as in LazyDisk.
+ * A checkpoint writes a new image, copying unchanged records straight
+ * from the old one, and renames it into place, so its cost is
+ * proportional to the number of saved blocks rather than the size of the
+ * disk.  Compression can be turned off with <tt>-Ddisk.compress=false</tt>.
+ * <pre>
+ *    java Boot 10 SparseDisk 1000000 Shell
+ * </pre>
+ *
+ * @see LazyDisk
+ * @see BlockCodec
+ */
+public class SparseDisk extends LazyDisk {
+    /** The name of the image file. */
+    public static final String IMAGE_NAME = "DISK.sparse";
+
+    /** The first four bytes of an image file ("SPRS"). */
+    private static final int MAGIC = 0x53505253;
+
+    /** The version of the image format. */
+    private static final int VERSION = 1;
+
+    /** The size of the image header, in bytes. */
+    private static final int HEADER_SIZE = 28;
+
+    /** The size of one index entry, in bytes. */
+    private static final int ENTRY_SIZE = 18;
+
+    /** Record kind: every byte of the block is the same. */
+    private static final byte KIND_FILL = 1;
+
+    /** Record kind: the block is stored as is. */
+    private static final byte KIND_RAW = 2;
+
+    /** Record kind: the block is compressed with BlockCodec. */
+    private static final byte KIND_COMPRESSED = 3;
+
+    /** Where one saved block is in the image file. */
+    private static class Entry {
+        byte kind;
+        byte fill;
+        int length;
+        long offset;
+
+        Entry(byte kind, byte fill, int length, long offset) {
+            this.kind = kind;
+            this.fill = fill;
+            this.length = length;
+            this.offset = offset;
+        }
+    } // Entry
+
+    /** The saved blocks, by block number. */
+    private TreeMap<Integer,Entry> index = new TreeMap<Integer,Entry>();
+
+    /** The image file, or null if there is none yet. */
+    private FileChannel image;
+
+    /** Whether to compress blocks when saving them. */
+    private boolean compress;
+
+    /** A count of blocks faulted in from the image, for statistics. */
+    protected int loadCount;
+
+    /** Creates a new SparseDisk, restoring its contents from DISK.sparse if
+     * that file exists.
+     * @param size the total size of this disk, in blocks.
+     */
+    public SparseDisk(int size) {
+        super(size, null);
+        compress = !"false".equals(System.getProperty("disk.compress"));
+        File f = new File(IMAGE_NAME);
+        if (!f.exists()) {
+            System.out.println("Creating new disk");
+            return;
+        }
+        try {
+            image = new RandomAccessFile(f, "rw").getChannel();
+            readIndex();
+        } catch (IOException e) {
+            e.printStackTrace();
+            System.exit(1);
+        }
+        System.out.println("Attached file " + IMAGE_NAME + " with "
+            + index.size() + " saved blocks");
+    } // constructor
+
+    /** Reads the header and index of the image file.
+     * Only the index is read; the blocks themselves are read on demand.
+     */
+    private void readIndex() throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        readFully(image, header, 0);
+        header.flip();
+        if (header.getInt() != MAGIC || header.getInt() != VERSION) {
+            throw new DiskException(IMAGE_NAME + " is not a disk image");
+        }
+        if (header.getInt() != BLOCK_SIZE || header.getInt() != DISK_SIZE) {
+            throw new DiskException(
+                "File " + IMAGE_NAME + " exists but is the wrong size");
+        }
+        long indexOffset = header.getLong();
+        int count = header.getInt();
+        ByteBuffer bb = ByteBuffer.allocate(count * ENTRY_SIZE);
+        readFully(image, bb, indexOffset);
+        bb.flip();
+        for (int i = 0; i < count; i++) {
+            int blockNumber = bb.getInt();
+            byte kind = bb.get();
+            byte fill = bb.get();
+            int length = bb.getInt();
+            long offset = bb.getLong();
+            index.put(blockNumber, new Entry(kind, fill, length, offset));
+        }
+    } // readIndex
+
+    /** Returns true if a block holds what a new disk would have there.
+     * @param blockNumber the block.
+     * @param block its contents.
+     */
+    private static boolean isDefault(int blockNumber, byte block[]) {
+        if (blockNumber == 0) {
+            for (int i = 0; i < BLOCK_SIZE; i++) {
+                if (block[i] != 0) {
+                    return false;
+                }
+            }
+            return true;
+        }
+        return Arrays.equals(block, JUNK);
+    } // isDefault
+
+    /** Fills in a block that is not resident, from the image if it was
+     * saved and with the contents of a new disk otherwise.
+     * The caller must hold the lock.
+     * @param blockNumber the block.
+     * @param buffer where to put its contents.
+     */
+    protected void fault(int blockNumber, byte buffer[]) throws IOException {
+        Entry e = index.get(blockNumber);
+        if (e == null) {
+            if (blockNumber == 0) {
+                Arrays.fill(buffer, 0, BLOCK_SIZE, (byte) 0);
+            } else {
+                System.arraycopy(JUNK, 0, buffer, 0, BLOCK_SIZE);
+            }
+            return;
+        }
+        byte block[] = new byte[BLOCK_SIZE];
+        if (e.kind == KIND_FILL) {
+            Arrays.fill(block, e.fill);
+        } else {
+            byte rec[] = new byte[e.length];
+            readFully(image, ByteBuffer.wrap(rec), e.offset);
+            if (e.kind == KIND_RAW) {
+                System.arraycopy(rec, 0, block, 0, BLOCK_SIZE);
+            } else if (BlockCodec.decompress(rec, 0, rec.length,
+                        block, BLOCK_SIZE) < 0)
+            {
+                throw new DiskException("Block " + blockNumber
+                    + " of " + IMAGE_NAME + " is corrupt");
+            }
+        }
+        loadCount++;
+        setResident(blockNumber, block);
+        System.arraycopy(block, 0, buffer, 0, BLOCK_SIZE);
+    } // fault
+
+    /** Writes a new image file holding every saved block and renames it
+     * over the old one.  Unchanged blocks are copied from the old image
+     * without being decoded; changed blocks are encoded afresh.
+     * @return the number of changed blocks saved.
+     */
+    public int checkpoint() {
+        synchronized (lock) {
+            if (image != null && dirty.isEmpty()) {
+                return 0;
+            }
+            int changed = dirty.cardinality();
+            File newFile = new File(IMAGE_NAME + ".new");
+            try {
+                FileChannel out
+                    = new RandomAccessFile(newFile, "rw").getChannel();
+                out.truncate(0);
+                TreeMap<Integer,Entry> newIndex = new TreeMap<Integer,Entry>();
+                long pos = HEADER_SIZE;
+
+                // Copy the records of unchanged blocks
+                for (Map.Entry<Integer,Entry> me : index.entrySet()) {
+                    int blockNumber = me.getKey();
+                    Entry e = me.getValue();
+                    if (dirty.get(blockNumber)) {
+                        continue;
+                    }
+                    Entry ne = new Entry(e.kind, e.fill, e.length, pos);
+                    long done = 0;
+                    while (done < e.length) {
+                        done += image.transferTo(e.offset + done,
+                                e.length - done, out.position(pos + done));
+                    }
+                    pos += e.length;
+                    newIndex.put(blockNumber, ne);
+                }
+
+                // Encode the changed blocks
+                byte scratch[] = new byte[BLOCK_SIZE - 1];
+                for (int b = dirty.nextSetBit(0); b >= 0;
+                        b = dirty.nextSetBit(b + 1))
+                {
+                    byte block[] = getResident(b);
+                    if (isDefault(b, block)) {
+                        continue;
+                    }
+                    Entry e = encode(block, scratch, pos);
+                    if (e.kind == KIND_COMPRESSED) {
+                        writeFully(out, ByteBuffer.wrap(scratch, 0, e.length),
+                                pos);
+                    } else if (e.kind == KIND_RAW) {
+                        writeFully(out, ByteBuffer.wrap(block), pos);
+                    }
+                    pos += e.length;
+                    newIndex.put(b, e);
+                }
+
+                // Write the index and then the header
+                ByteBuffer bb = ByteBuffer.allocate(newIndex.size() * ENTRY_SIZE);
+                for (Map.Entry<Integer,Entry> me : newIndex.entrySet()) {
+                    Entry e = me.getValue();
+                    bb.putInt(me.getKey());
+                    bb.put(e.kind);
+                    bb.put(e.fill);
+                    bb.putInt(e.length);
+                    bb.putLong(e.offset);
+                }
+                bb.flip();
+                writeFully(out, bb, pos);
+                ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+                header.putInt(MAGIC).putInt(VERSION)
+                    .putInt(BLOCK_SIZE).putInt(DISK_SIZE)
+                    .putLong(pos).putInt(newIndex.size());
+                header.flip();
+                writeFully(out, header, 0);
+                out.force(true);
+
+                if (image != null) {
+                    image.close();
+                }
+                out.close();
+                if (!newFile.renameTo(new File(IMAGE_NAME))) {
+                    throw new IOException("cannot rename " + newFile);
+                }
+                image = new RandomAccessFile(IMAGE_NAME, "rw").getChannel();
+                index = newIndex;
+            } catch (IOException e) {
+                e.printStackTrace();
+                System.exit(1);
+            }
+            dirty.clear();
+            return changed;
+        }
+    } // checkpoint
+
+    /** Decides how to save a block.
+     * @param block the contents of the block.
+     * @param scratch space for the compressed form, which is used only if
+     *      it is smaller than the block.
+     * @param pos where the record will be written.
+     * @return the index entry for the block.
+     */
+    private Entry encode(byte block[], byte scratch[], long pos) {
+        boolean constant = true;
+        for (int i = 1; i < BLOCK_SIZE; i++) {
+            if (block[i] != block[0]) {
+                constant = false;
+                break;
+            }
+        }
+        if (constant) {
+            return new Entry(KIND_FILL, block[0], 0, 0);
+        }
+        if (compress) {
+            int n = BlockCodec.compress(block, BLOCK_SIZE, scratch);
+            if (n > 0) {
+                return new Entry(KIND_COMPRESSED, (byte) 0, n, pos);
+            }
+        }
+        return new Entry(KIND_RAW, (byte) 0, BLOCK_SIZE, pos);
+    } // encode
+
+    /** Saves the contents of this disk and prints some statistics. */
+    public void flush() {
+        System.out.println("Saving contents to " + IMAGE_NAME + "...");
+        int n = checkpoint();
+        long bytes = 0;
+        try {
+            bytes = image.size();
+            image.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        System.out.println(readCount + " read operations and "
+            + writeCount + " write operations performed");
+        System.out.println(loadCount + " blocks loaded, " + n
+            + " blocks saved, image is " + bytes + " bytes for "
+            + index.size() + " blocks");
+    } // flush
+
+    /** Reads until the buffer is full. */
+    private static void readFully(FileChannel ch, ByteBuffer bb, long pos)
+            throws IOException
+    {
+        while (bb.hasRemaining()) {
+            if (ch.read(bb, pos + bb.position()) < 0) {
+                throw new EOFException(IMAGE_NAME + " is truncated");
+            }
+        }
+    } // readFully
+
+    /** Writes the whole buffer. */
+    private static void writeFully(FileChannel ch, ByteBuffer bb, long pos)
+            throws IOException
+    {
+        int start = bb.position();
+        while (bb.hasRemaining()) {
+            ch.write(bb, pos + bb.position() - start);
+        }
+    } // writeFully
+} // SparseDisk
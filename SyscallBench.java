@@ -0,0 +1,119 @@
+import java.lang.management.*;
+
+/**
+ * Measures the cost of the hot system calls, made through the generic
+ * Kernel.interrupt() and through their typed fast paths:
+ * <pre>
+ *    SyscallBench [calls]
+ * </pre>
+ * For each call it prints the time and the bytes allocated per call, each
+ * way.  The read reads block 0 over and over, so run it with a cache to
+ * measure the system call rather than the disk.  Writes are left out:
+ * each one goes through to the disk, whose delay would swamp the call.
+ */
+public class SyscallBench {
+    private static final String[] NAMES = {
+        "get_time", "get_block_size", "get_block_count", "read_disk_block"
+    };
+
+    /** Counts allocation by this thread, if the JVM can. */
+    private static com.sun.management.ThreadMXBean threads;
+
+    /** Keeps the results live, so the calls are not optimized away. */
+    private static long sink;
+
+    public static void main(String[] args) {
+        int calls = 1000000;
+        if (args.length > 0) {
+            try {
+                calls = Integer.parseInt(args[0]);
+            } catch (NumberFormatException e) {
+                Library.output("usage: SyscallBench [calls]\n");
+                return;
+            }
+        }
+        ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        if (bean instanceof com.sun.management.ThreadMXBean) {
+            threads = (com.sun.management.ThreadMXBean) bean;
+        }
+        byte[] block = new byte[Library.getDiskBlockSize()];
+        Library.output("call               interrupt ns  B/call"
+                       + "    fast ns  B/call\n");
+        for (int call = 0; call < NAMES.length; call++) {
+            // The first round warms up the compiler
+            run(call, false, calls, block);
+            run(call, true, calls, block);
+            long[] slow = run(call, false, calls, block);
+            long[] fast = run(call, true, calls, block);
+            String name = NAMES[call] + "                  ";
+            Library.output(name.substring(0, 18)
+                           + pad(slow[0] / calls, 13)
+                           + pad(slow[1] / calls, 8)
+                           + pad(fast[0] / calls, 11)
+                           + pad(fast[1] / calls, 8) + "\n");
+        }
+    } // main
+
+    /** Makes one system call many times.
+     * @param call which call, an index into NAMES.
+     * @param fast whether to use the fast path.
+     * @param calls how many times.
+     * @param block a buffer of one block.
+     * @return the time taken (ns) and the bytes allocated.
+     */
+    private static long[] run(int call, boolean fast, int calls,
+                              byte[] block)
+    {
+        long bytes = allocated();
+        long start = System.nanoTime();
+        for (int i = 0; i < calls; i++) {
+            switch (call) {
+            case 0:
+                if (fast) {
+                    sink += Kernel.getTime();
+                } else {
+                    long[] t = new long[1];
+                    Kernel.interrupt(Kernel.INTERRUPT_USER,
+                                     Kernel.SYSCALL_GET_TIME, 0, t, null, null);
+                    sink += t[0];
+                }
+                break;
+            case 1:
+                sink += fast ? Kernel.getBlockSize()
+                    : Kernel.interrupt(Kernel.INTERRUPT_USER,
+                                       Kernel.SYSCALL_GET_BLOCK_SIZE,
+                                       0, null, null, null);
+                break;
+            case 2:
+                sink += fast ? Kernel.getBlockCount()
+                    : Kernel.interrupt(Kernel.INTERRUPT_USER,
+                                       Kernel.SYSCALL_GET_BLOCK_COUNT,
+                                       0, null, null, null);
+                break;
+            case 3:
+                sink += fast ? Kernel.readBlock(0, block)
+                    : Kernel.interrupt(Kernel.INTERRUPT_USER,
+                                       Kernel.SYSCALL_READ_DISK_BLOCK,
+                                       0, block, null, null);
+                break;
+            }
+        }
+        long time = System.nanoTime() - start;
+        return new long[] { time, allocated() - bytes };
+    } // run
+
+    /** @return the bytes allocated by this thread so far, or zero. */
+    private static long allocated() {
+        return threads == null ? 0
+            : threads.getThreadAllocatedBytes(Thread.currentThread().getId());
+    }
+
+    /** Right-justifies a value in a field. */
+    private static String pad(Object value, int width) {
+        String s = value.toString();
+        while (s.length() < width) {
+            s = " " + s;
+        }
+        return s;
+    }
+} // SyscallBench